@@ -0,0 +1,87 @@
+package org.mib.cochat.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares probing image dimensions from headers with the image reader lookup it replaced, on a noisy 4000x3000
+ * image per format. Run with {@code mvn -Pbenchmark test-compile exec:exec}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageProbeBenchmark {
+
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+
+    @Param({"png", "jpeg", "gif", "bmp"})
+    public String format;
+
+    private Path image;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BufferedImage noise = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(format.hashCode());
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                noise.setRGB(x, y, random.nextInt());
+            }
+        }
+        image = Files.createTempFile("probe-", "." + format);
+        if (!ImageIO.write(noise, format, image.toFile())) throw new IllegalStateException("no image writer for " + format);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(image);
+    }
+
+    @Benchmark
+    public Dimension headerProber() throws IOException {
+        return ImageHeaderProber.probe(image);
+    }
+
+    @Benchmark
+    public Dimension imageReader() throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByMIMEType("image/" + format);
+        while (readers.hasNext()) {
+            ImageReader reader = readers.next();
+            try (ImageInputStream iis = new FileImageInputStream(image.toFile())) {
+                reader.setInput(iis);
+                return new Dimension(reader.getWidth(reader.getMinIndex()), reader.getHeight(reader.getMinIndex()));
+            } finally {
+                reader.dispose();
+            }
+        }
+        return null;
+    }
+}
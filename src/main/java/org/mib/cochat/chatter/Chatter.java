@@ -1,16 +1,14 @@
 package org.mib.cochat.chatter;
 
-import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.ToString;
-import org.apache.commons.lang3.RandomStringUtils;
+import org.mib.cochat.token.Tokens;
 import org.mib.common.hash.FNVHash;
 
 import static org.mib.common.validator.Validator.validateStringNotBlank;
 
 @Getter
 @ToString
-@EqualsAndHashCode
 public class Chatter {
 
     private static final int TOKEN_LEN = 32;
@@ -22,7 +20,7 @@ public class Chatter {
     public Chatter(final String name) {
         validateStringNotBlank(name, "chatter name");
         this.name = name;
-        this.token = RandomStringUtils.randomAlphanumeric(TOKEN_LEN);
+        this.token = Tokens.secure(TOKEN_LEN);
         this.identity = FNVHash.hash64(token);
     }
 
@@ -33,4 +31,20 @@ public class Chatter {
         this.name = name;
         this.identity = FNVHash.hash64(token);
     }
+
+    /**
+     * Chatters are equal by token, the precomputed identity rules out nearly all unequal ones without comparing it.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Chatter)) return false;
+        Chatter other = (Chatter) o;
+        return identity == other.identity && token.equals(other.token);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(identity);
+    }
 }
@@ -0,0 +1,116 @@
+package org.mib.cochat.chatter;
+
+import org.mib.common.hash.FNVHash;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.mib.common.validator.Validator.validateObjectNotNull;
+
+/**
+ * Open addressing table of chatters keyed by their 64 bits token identity, for authenticating requests without
+ * boxing keys or walking hash buckets. Lookups are lock free and verify the full token on a hit, since distinct
+ * tokens may share an identity; writes are serialized and leave tombstones, which are dropped when the table is
+ * rebuilt on growth.
+ */
+public class ChatterIndex {
+
+    private static final Object TOMBSTONE = new Object();
+    private static final int INITIAL_CAPACITY = 64;
+
+    private volatile AtomicReferenceArray<Object> slots;
+    // live chatters and tombstones, guarded by this
+    private int size;
+    private int tombstones;
+
+    public ChatterIndex() {
+        this.slots = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return chatter of the token, or null if not indexed
+     */
+    public Chatter get(String token) {
+        if (token == null) return null;
+        long identity = FNVHash.hash64(token);
+        AtomicReferenceArray<Object> table = slots;
+        int mask = table.length() - 1;
+        for (int i = index(identity, mask), probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+            Object slot = table.get(i);
+            if (slot == null) return null;
+            if (slot == TOMBSTONE) continue;
+            Chatter chatter = (Chatter) slot;
+            if (chatter.getIdentity() == identity && chatter.getToken().equals(token)) return chatter;
+        }
+        return null;
+    }
+
+    public synchronized void put(Chatter chatter) {
+        validateObjectNotNull(chatter, "chatter");
+        if ((size + tombstones + 1) * 2 > slots.length()) rebuild();
+        AtomicReferenceArray<Object> table = slots;
+        int mask = table.length() - 1, free = -1;
+        for (int i = index(chatter.getIdentity(), mask); ; i = (i + 1) & mask) {
+            Object slot = table.get(i);
+            if (slot == null) {
+                if (free < 0) {
+                    free = i;
+                } else {
+                    tombstones--;
+                }
+                table.set(free, chatter);
+                size++;
+                return;
+            }
+            if (slot == TOMBSTONE) {
+                if (free < 0) free = i;
+                continue;
+            }
+            if (((Chatter) slot).getToken().equals(chatter.getToken())) {
+                table.set(i, chatter);
+                return;
+            }
+        }
+    }
+
+    public synchronized void remove(String token) {
+        if (token == null) return;
+        long identity = FNVHash.hash64(token);
+        AtomicReferenceArray<Object> table = slots;
+        int mask = table.length() - 1;
+        for (int i = index(identity, mask); ; i = (i + 1) & mask) {
+            Object slot = table.get(i);
+            if (slot == null) return;
+            if (slot != TOMBSTONE && ((Chatter) slot).getToken().equals(token)) {
+                table.set(i, TOMBSTONE);
+                size--;
+                tombstones++;
+                return;
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void rebuild() {
+        AtomicReferenceArray<Object> table = slots;
+        int capacity = table.length();
+        while (size * 4 >= capacity) capacity <<= 1;
+        AtomicReferenceArray<Object> rebuilt = new AtomicReferenceArray<>(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < table.length(); i++) {
+            Object slot = table.get(i);
+            if (slot == null || slot == TOMBSTONE) continue;
+            int j = index(((Chatter) slot).getIdentity(), mask);
+            while (rebuilt.get(j) != null) j = (j + 1) & mask;
+            rebuilt.set(j, slot);
+        }
+        tombstones = 0;
+        slots = rebuilt;
+    }
+
+    private static int index(long identity, int mask) {
+        return (int) (identity ^ (identity >>> 32)) & mask;
+    }
+}
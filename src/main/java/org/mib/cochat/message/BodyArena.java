@@ -0,0 +1,182 @@
+package org.mib.cochat.message;
+
+import com.google.common.collect.Sets;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static org.mib.common.validator.Validator.validateIntPositive;
+import static org.mib.common.validator.Validator.validateStringNotBlank;
+
+/**
+ * Append-only store of message bodies outside the heap, in memory mapped segments of unlinked files so the page
+ * cache rather than the heap holds them, and nothing is left on disk. A body is stored as its utf-8 length and char
+ * length followed by the bytes, and addressed by its segment and offset. The arena only holds on to the segment
+ * being appended to; texts hold the segments of their bodies, so a segment is unmapped by the garbage collector once
+ * every body in it was dropped, whichever way its messages went.
+ */
+@Slf4j
+public class BodyArena {
+
+    private static final int HEADER_BYTES = 8;
+
+    private static final Gauge MAPPED_SEGMENTS = Gauge.build()
+            .name("cochat_arena_mapped_segments").help("arena segments mapped and not collected yet")
+            .register();
+    private static final Counter SPILLED = Counter.build()
+            .name("cochat_arena_spilled_total").help("message bodies kept on heap for not fitting the arena")
+            .labelNames("reason").register();
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    // phantom references of mapped segments, kept reachable until enqueued
+    private final Set<Reference<Segment>> mapped;
+    private final ReferenceQueue<Segment> collected;
+    // guarded by this
+    private Segment current;
+    private int created;
+
+    /**
+     * @param maxSegments segments mapped at most, bodies going on heap while they're all in use; 0 for no cap
+     */
+    public BodyArena(final String directory, final int segmentBytes, final int maxSegments) {
+        validateStringNotBlank(directory, "arena directory");
+        validateIntPositive(segmentBytes, "arena segment bytes");
+        if (maxSegments < 0) throw new IllegalArgumentException("negative arena max segments " + maxSegments);
+        this.directory = Paths.get(directory);
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.mapped = Sets.newConcurrentHashSet();
+        this.collected = new ReferenceQueue<>();
+        try {
+            Files.createDirectories(this.directory);
+        } catch (IOException e) {
+            log.error("failed to create arena directory {}", directory, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Stores the body in the current segment, mapping another once it's full.
+     *
+     * @return offset of the body in the segment passed to the holder, or -1 if it has to stay on heap for being
+     * larger than a segment or the arena being at its cap
+     */
+    public int append(String body, Consumer<Segment> holder) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        int required = HEADER_BYTES + bytes.length;
+        if (required > segmentBytes) {
+            SPILLED.labels("size").inc();
+            return -1;
+        }
+        Segment segment;
+        int offset;
+        synchronized (this) {
+            if (current == null || current.position + required > segmentBytes) {
+                current = map();
+                if (current == null) {
+                    SPILLED.labels("cap").inc();
+                    return -1;
+                }
+            }
+            segment = current;
+            offset = segment.position;
+            segment.position += required;
+        }
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.putInt(offset, bytes.length);
+        buffer.putInt(offset + 4, body.length());
+        buffer.position(offset + HEADER_BYTES);
+        buffer.put(bytes);
+        holder.accept(segment);
+        return offset;
+    }
+
+    /**
+     * @return segments currently mapped, counting unreferenced ones until they're collected
+     */
+    public int mappedSegments() {
+        expunge();
+        return mapped.size();
+    }
+
+    /**
+     * @return a new segment, or null if the cap is reached
+     */
+    private Segment map() {
+        expunge();
+        if (maxSegments > 0 && mapped.size() >= maxSegments) {
+            if (current != null) log.warn("arena is at its cap of {} segments, keeping bodies on heap", maxSegments);
+            return null;
+        }
+        File file = directory.resolve("bodies-" + created++ + ".seg").toFile();
+        Segment segment;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(segmentBytes);
+            segment = new Segment(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+        } catch (IOException e) {
+            log.error("failed to map arena segment {}", file, e);
+            throw new RuntimeException(e);
+        } finally {
+            // the mapping outlives the file
+            if (!file.delete()) log.warn("failed to unlink arena segment {}", file);
+        }
+        mapped.add(new PhantomReference<>(segment, collected));
+        MAPPED_SEGMENTS.inc();
+        log.info("mapped arena segment {} of {} bytes, {} mapped", file.getName(), segmentBytes, mapped.size());
+        return segment;
+    }
+
+    private void expunge() {
+        Reference<? extends Segment> reference;
+        while ((reference = collected.poll()) != null) {
+            if (mapped.remove(reference)) MAPPED_SEGMENTS.dec();
+        }
+    }
+
+    /**
+     * A mapped region of bodies, unmapped when it's no longer referenced.
+     */
+    public static final class Segment {
+
+        private final MappedByteBuffer buffer;
+        // guarded by the arena
+        private int position;
+
+        private Segment(final MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public String read(int offset) {
+            ByteBuffer segment = buffer.duplicate();
+            byte[] bytes = new byte[segment.getInt(offset)];
+            segment.position(offset + HEADER_BYTES);
+            segment.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return length of the body in chars, without materializing it
+         */
+        public int length(int offset) {
+            return buffer.getInt(offset + 4);
+        }
+    }
+}
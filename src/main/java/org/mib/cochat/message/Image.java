@@ -11,16 +11,17 @@ public class Image extends RawFile {
     private final int height;
     private final int width;
 
-    public Image(final String name, final int height, final int width) {
-        super(name);
+    public Image(final String name, final String digest, final int height, final int width) {
+        super(name, digest);
         validateIntPositive(height, "image height");
         validateIntPositive(width, "image width");
         this.height = height;
         this.width = width;
     }
 
-    public Image(final Chatter author, String token, final long timestamp, final String name, final int height, final int width) {
-        super(author, token, timestamp, name);
+    public Image(final Chatter author, String token, final long timestamp, final String name, final String digest,
+                 final int height, final int width) {
+        super(author, token, timestamp, name, digest);
         validateIntPositive(height, "image height");
         validateIntPositive(width, "image width");
         this.height = height;
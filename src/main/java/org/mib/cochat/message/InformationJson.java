@@ -0,0 +1,126 @@
+package org.mib.cochat.message;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.mib.cochat.chatter.Chatter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.mib.common.validator.Validator.validateLongPositive;
+import static org.mib.common.validator.Validator.validateObjectNotNull;
+
+/**
+ * Encodes information as utf-8 json through a streaming generator, with a serializer per type that emits the same
+ * fields bean serialization would but without introspecting the classes. Information doesn't change once published,
+ * so encodings can be cached and shared by rest responses, web socket frames and event streams; the cache is bounded
+ * by encoded bytes and holds its keys weakly, so dropped messages leave it with the garbage collector. Anything
+ * else, like messages read back from cold storage as maps, goes through a plain object mapper.
+ */
+@Slf4j
+public final class InformationJson {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final JsonFactory FACTORY = MAPPER.getFactory();
+    private static final int INITIAL_BUFFER_BYTES = 256;
+
+    private static volatile Cache<Information, byte[]> cache;
+
+    private InformationJson() {}
+
+    /**
+     * Caches encodings of up to the given total bytes from now on, least recently used ones evicted first.
+     */
+    public static void useCache(long maxBytes) {
+        validateLongPositive(maxBytes, "json cache bytes");
+        cache = CacheBuilder.newBuilder()
+                .weakKeys()
+                .maximumWeight(maxBytes)
+                .weigher((Information info, byte[] encoded) -> encoded.length)
+                .build();
+        log.info("caching json encodings of up to {} bytes", maxBytes);
+    }
+
+    /**
+     * @return utf-8 json of the information, shared with the cache and never to be modified
+     */
+    public static byte[] encode(Information info) {
+        validateObjectNotNull(info, "info");
+        Cache<Information, byte[]> current = cache;
+        byte[] encoded = current == null ? null : current.getIfPresent(info);
+        if (encoded != null) return encoded;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(INITIAL_BUFFER_BYTES);
+        try (JsonGenerator generator = FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+            write(generator, info);
+        } catch (IOException e) {
+            log.error("failed to encode {} {}", info.getType(), info, e);
+            throw new RuntimeException(e);
+        }
+        encoded = out.toByteArray();
+        if (current != null) current.put(info, encoded);
+        return encoded;
+    }
+
+    /**
+     * Writes the items as a json array by concatenating their encodings, without closing the stream.
+     */
+    public static void writeArray(OutputStream out, Iterable<?> items) throws IOException {
+        validateObjectNotNull(out, "json output stream");
+        out.write('[');
+        boolean first = true;
+        for (Object item : items) {
+            if (!first) out.write(',');
+            first = false;
+            out.write(item instanceof Information ? encode((Information) item) : MAPPER.writeValueAsBytes(item));
+        }
+        out.write(']');
+    }
+
+    private static void write(JsonGenerator generator, Information info) throws IOException {
+        if (info instanceof Text) {
+            Text text = (Text) info;
+            writeMessageFields(generator, text);
+            generator.writeStringField("text", text.getText());
+        } else if (info instanceof RawFile) {
+            RawFile file = (RawFile) info;
+            writeMessageFields(generator, file);
+            generator.writeStringField("name", file.getName());
+            if (file instanceof Image) {
+                Image image = (Image) file;
+                generator.writeNumberField("height", image.getHeight());
+                generator.writeNumberField("width", image.getWidth());
+            }
+        } else if (info instanceof Notification) {
+            Notification notification = (Notification) info;
+            writeInformationFields(generator, notification);
+            generator.writeStringField("content", notification.getContent());
+        } else {
+            generator.writeObject(info);
+            return;
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeInformationFields(JsonGenerator generator, Information info) throws IOException {
+        generator.writeStartObject();
+        generator.writeNumberField("timestamp", info.getTimestamp());
+        generator.writeStringField("type", info.getType());
+    }
+
+    private static void writeMessageFields(JsonGenerator generator, Message message) throws IOException {
+        writeInformationFields(generator, message);
+        generator.writeStringField("token", message.getToken());
+        Chatter author = message.getAuthor();
+        generator.writeObjectFieldStart("author");
+        generator.writeStringField("token", author.getToken());
+        generator.writeStringField("name", author.getName());
+        generator.writeNumberField("identity", author.getIdentity());
+        generator.writeEndObject();
+    }
+}
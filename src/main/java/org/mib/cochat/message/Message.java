@@ -1,12 +1,14 @@
 package org.mib.cochat.message;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.ToString;
-import org.apache.commons.lang3.RandomStringUtils;
 import org.mib.cochat.chatter.Chatter;
 import org.mib.cochat.context.CochatScope;
+import org.mib.cochat.token.Tokens;
 
+import static org.mib.common.validator.Validator.validateLongPositive;
 import static org.mib.common.validator.Validator.validateObjectNotNull;
 import static org.mib.common.validator.Validator.validateStringNotBlank;
 
@@ -19,6 +21,8 @@ public abstract class Message extends Information {
 
     protected volatile String token;
     private final Chatter author;
+    // position in the room timeline, 0 until the message is appended to one
+    private @JsonIgnore volatile long sequence;
 
     public Message() {
         this(CochatScope.getChatter(), System.currentTimeMillis());
@@ -27,7 +31,7 @@ public abstract class Message extends Information {
     public Message(final Chatter author, final long timestamp) {
         super(timestamp);
         validateObjectNotNull(author, "author");
-        this.token = RandomStringUtils.randomAlphanumeric(MESSAGE_TOKEN_LEN);
+        this.token = Tokens.timeOrdered(timestamp, MESSAGE_TOKEN_LEN);
         this.author = author;
     }
 
@@ -39,7 +43,13 @@ public abstract class Message extends Information {
         this.author = author;
     }
 
-    public void refreshToken() {
-        this.token = RandomStringUtils.randomAlphanumeric(MESSAGE_TOKEN_LEN);
+    /**
+     * Set once, by the room timeline appending the message or by recovery of a persisted sequence.
+     */
+    @JsonIgnore
+    public void setSequence(long sequence) {
+        validateLongPositive(sequence, "message sequence");
+        if (this.sequence != 0) throw new IllegalStateException("sequence already set");
+        this.sequence = sequence;
     }
 }
@@ -1,23 +1,29 @@
 package org.mib.cochat.message;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Getter;
 import org.mib.cochat.chatter.Chatter;
 
 import static org.mib.common.validator.Validator.validateStringNotBlank;
 
+@Getter
 public class RawFile extends Message {
 
-    private @Getter final String name;
+    private final String name;
+    /** sha-256 of the content in the blob store, null for files stored by token before content addressing */
+    private @JsonIgnore final String digest;
 
-    public RawFile(final String name) {
+    public RawFile(final String name, final String digest) {
         super();
         validateStringNotBlank(name, "file name");
         this.name = name;
+        this.digest = digest;
     }
 
-    public RawFile(final Chatter author, final String token, final long timestamp, final String name) {
+    public RawFile(final Chatter author, final String token, final long timestamp, final String name, final String digest) {
         super(author, token, timestamp);
         validateStringNotBlank(name, "file name");
         this.name = name;
+        this.digest = digest;
     }
 }
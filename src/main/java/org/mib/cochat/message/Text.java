@@ -1,23 +1,57 @@
 package org.mib.cochat.message;
 
-import lombok.Getter;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.mib.cochat.chatter.Chatter;
 
 import static org.mib.common.validator.Validator.validateStringNotBlank;
 
 public class Text extends Message {
 
-    private @Getter final String text;
+    private static volatile BodyArena arena;
+
+    // null when the body lives in the arena, at the offset of the segment
+    private String text;
+    private BodyArena.Segment segment;
+    private int offset;
 
     public Text(final Chatter author, final String token, final long timestamp, final String text) {
         super(author, token, timestamp);
         validateStringNotBlank(text, "text message");
-        this.text = text;
+        store(text);
     }
 
     public Text(final String text) {
         super();
         validateStringNotBlank(text, "text message");
-        this.text = text;
+        store(text);
+    }
+
+    /**
+     * Keeps bodies of texts created from now on off heap in the arena; to take effect on recovered messages it has
+     * to be installed before repositories are loaded.
+     */
+    public static void useArena(BodyArena bodyArena) {
+        arena = bodyArena;
+    }
+
+    /**
+     * @return the body, materialized from the arena if it's stored there
+     */
+    public String getText() {
+        return text != null ? text : segment.read(offset);
+    }
+
+    /**
+     * @return length of the body in chars, without materializing it
+     */
+    @JsonIgnore
+    public int getTextLength() {
+        return text != null ? text.length() : segment.length(offset);
+    }
+
+    private void store(String body) {
+        BodyArena current = arena;
+        offset = current == null ? -1 : current.append(body, stored -> segment = stored);
+        if (offset < 0) text = body;
     }
 }
@@ -0,0 +1,154 @@
+package org.mib.cochat.repo;
+
+import org.mib.cochat.chatter.Chatter;
+import org.mib.cochat.message.Image;
+import org.mib.cochat.message.Message;
+import org.mib.cochat.message.RawFile;
+import org.mib.cochat.message.Text;
+import org.mib.cochat.room.RetentionPolicy;
+import org.mib.cochat.room.Room;
+
+import static org.mib.common.validator.Validator.validateObjectNotNull;
+
+/**
+ * Binary snapshot codecs of chatters, rooms and messages. Field order per type is the same as in the legacy text
+ * format; messages are tagged with the same type ids.
+ */
+class CochatRecordCodecs {
+
+    private static final int TEXT_TYPE = 1;
+    private static final int IMAGE_TYPE = 2;
+    private static final int FILE_TYPE = 3;
+    private static final int TYPE_MASK = 0x0f;
+    // flags a file message whose content digest follows the type specific fields
+    private static final int CONTENT_ADDRESSED = 0x10;
+    // flags a message whose timeline sequence comes last
+    private static final int SEQUENCED = 0x20;
+
+    private CochatRecordCodecs() {}
+
+    static RecordCodec<String, Chatter> chatter() {
+        return new TokenKeyedCodec<Chatter>() {
+
+            @Override
+            public void encodeValue(Chatter value, RecordBuffer out) {
+                out.putString(value.getToken()).putString(value.getName());
+            }
+
+            @Override
+            public Chatter decodeValue(RecordBuffer in) {
+                return new Chatter(in.getString(), in.getString());
+            }
+        };
+    }
+
+    static RecordCodec<String, Room> room(final Repository<String, Chatter> chatterRepository) {
+        validateObjectNotNull(chatterRepository, "chatter repository");
+        return new TokenKeyedCodec<Room>() {
+
+            @Override
+            public void encodeValue(Room value, RecordBuffer out) {
+                out.putString(value.getToken()).putString(value.getName()).putString(value.getCreator().getToken());
+                RetentionPolicy policy = value.getRetentionPolicy();
+                if (policy == null) {
+                    out.putByte(0);
+                } else {
+                    out.putByte(1).putVarInt(policy.getMaxMessages()).putVarInt(policy.getMaxAgeSeconds())
+                            .putVarLong(policy.getMaxBytes());
+                }
+            }
+
+            @Override
+            public Room decodeValue(RecordBuffer in) {
+                String token = in.getString(), name = in.getString(), creator = in.getString();
+                Room room = new Room(chatterRepository.retrieve(creator), token, name);
+                if (in.getByte() != 0) {
+                    room.setRetentionPolicy(new RetentionPolicy(in.getVarInt(), in.getVarInt(), in.getVarLong()));
+                }
+                return room;
+            }
+        };
+    }
+
+    static RecordCodec<String, Message> message(final Repository<String, Chatter> chatterRepository,
+                                                final Repository<String, Room> roomRepository) {
+        validateObjectNotNull(chatterRepository, "chatter repository");
+        validateObjectNotNull(roomRepository, "room repository");
+        return new TokenKeyedCodec<Message>() {
+
+            @Override
+            public void encodeValue(Message value, RecordBuffer out) {
+                int type;
+                if (value instanceof Text) {
+                    type = TEXT_TYPE;
+                } else if (value instanceof Image) {
+                    type = IMAGE_TYPE;
+                } else if (value instanceof RawFile) {
+                    type = FILE_TYPE;
+                } else {
+                    throw new IllegalArgumentException("unknown message type " + value.getClass().getSimpleName());
+                }
+                String digest = value instanceof RawFile ? ((RawFile) value).getDigest() : null;
+                int tag = type | (digest == null ? 0 : CONTENT_ADDRESSED) | (value.getSequence() > 0 ? SEQUENCED : 0);
+                out.putByte(tag).putString(value.getToken()).putString(value.getRoom().getToken())
+                        .putString(value.getAuthor().getToken()).putVarLong(value.getTimestamp());
+                switch (type) {
+                    case TEXT_TYPE:
+                        out.putString(((Text) value).getText());
+                        break;
+                    case IMAGE_TYPE:
+                        Image image = (Image) value;
+                        out.putString(image.getName()).putVarInt(image.getHeight()).putVarInt(image.getWidth());
+                        break;
+                    default:
+                        out.putString(((RawFile) value).getName());
+                }
+                if (digest != null) out.putString(digest);
+                if (value.getSequence() > 0) out.putVarLong(value.getSequence());
+            }
+
+            @Override
+            public Message decodeValue(RecordBuffer in) {
+                int tag = in.getByte(), type = tag & TYPE_MASK;
+                boolean addressed = (tag & CONTENT_ADDRESSED) != 0;
+                String token = in.getString(), roomToken = in.getString(), authorToken = in.getString();
+                long timestamp = in.getVarLong();
+                Chatter author = chatterRepository.retrieve(authorToken);
+                Message message;
+                switch (type) {
+                    case TEXT_TYPE:
+                        message = new Text(author, token, timestamp, in.getString());
+                        break;
+                    case IMAGE_TYPE:
+                        String imageName = in.getString();
+                        int height = in.getVarInt(), width = in.getVarInt();
+                        message = new Image(author, token, timestamp, imageName, addressed ? in.getString() : null, height, width);
+                        break;
+                    case FILE_TYPE:
+                        String fileName = in.getString();
+                        message = new RawFile(author, token, timestamp, fileName, addressed ? in.getString() : null);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown message id " + type);
+                }
+                if ((tag & SEQUENCED) != 0) message.setSequence(in.getVarLong());
+                // timelines are bulk built once the whole repository is loaded
+                message.setRoom(roomRepository.retrieve(roomToken));
+                return message;
+            }
+        };
+    }
+
+    private abstract static class TokenKeyedCodec<V> implements RecordCodec<String, V> {
+
+        @Override
+        public void encodeKey(String key, RecordBuffer out) {
+            out.putString(key);
+        }
+
+        @Override
+        public String decodeKey(RecordBuffer in) {
+            return in.getString();
+        }
+    }
+}
@@ -3,7 +3,10 @@ package org.mib.cochat.repo;
 import com.google.common.collect.Maps;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.Collection;
 import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 
 @Slf4j
 public class InMemoryRepository<K, V> implements Repository<K, V> {
@@ -19,18 +22,56 @@ public class InMemoryRepository<K, V> implements Repository<K, V> {
         return map.get(key);
     }
 
+    @Override
+    public Map<K, V> retrieveAll(Collection<? extends K> keys) {
+        Map<K, V> values = Maps.newHashMapWithExpectedSize(keys.size());
+        for (K key : keys) {
+            V value = map.get(key);
+            if (value != null) values.put(key, value);
+        }
+        return values;
+    }
+
     @Override
     public boolean store(K key, V value) {
-        if (retrieve(key) != null) {
+        if (putIfAbsent(key, value) != null) {
             log.debug("key {} already occupied for value {} in this repo", key, value);
             return false;
         }
-        map.put(key, value);
         return true;
     }
 
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return map.putIfAbsent(key, value);
+    }
+
+    @Override
+    public int storeAll(Map<? extends K, ? extends V> entries) {
+        int stored = 0;
+        for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+            if (putIfAbsent(entry.getKey(), entry.getValue()) == null) stored++;
+        }
+        return stored;
+    }
+
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> function) {
+        return map.compute(key, function);
+    }
+
     @Override
     public boolean delete(K key) {
         return map.remove(key) != null;
     }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        map.forEach(action);
+    }
 }
@@ -1,18 +1,23 @@
 package org.mib.cochat.repo;
 
 import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
 import org.mib.cochat.chatter.Chatter;
 import org.mib.cochat.message.Image;
 import org.mib.cochat.message.Message;
 import org.mib.cochat.message.RawFile;
 import org.mib.cochat.message.Text;
+import org.mib.cochat.room.RetentionPolicy;
 import org.mib.cochat.room.Room;
 
-import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import static org.mib.common.validator.Validator.validateObjectNotNull;
 import static org.mib.common.validator.Validator.validateStringNotBlank;
 
+@Slf4j
 @Getter
 public class InMemoryWithFSPersistenceRepositories implements Repositories {
 
@@ -38,7 +43,7 @@ public class InMemoryWithFSPersistenceRepositories implements Repositories {
 
             @Override
             protected String serValue(Chatter value) {
-                return value.getToken() + '\t' + value.getName().replaceAll("\t", "\\t");
+                return value.getToken() + '\t' + escape(value.getName());
             }
 
             @Override
@@ -46,12 +51,17 @@ public class InMemoryWithFSPersistenceRepositories implements Repositories {
                 return serKey;
             }
 
+            @Override
+            protected RecordCodec<String, Chatter> codec() {
+                return CochatRecordCodecs.chatter();
+            }
+
             @Override
             protected Chatter fromSerValue(String serValue) {
                 validateStringNotBlank(serValue, "serialized chatter value");
                 String[] fields = serValue.split("\t");
                 if (fields.length != 2) throw new IllegalArgumentException("invalid serialized chatter value " + serValue);
-                return new Chatter(fields[0], fields[1].replaceAll("\\t", "\t"));
+                return new Chatter(fields[0], unescape(fields[1]));
             }
         };
         this.roomRepository = new InMemoryWithFSPersistenceRepository<String, Room>(roomRepoPath, roomRepoPersistStrategy) {
@@ -63,7 +73,10 @@ public class InMemoryWithFSPersistenceRepositories implements Repositories {
 
             @Override
             protected String serValue(Room value) {
-                return value.getToken() + '\t' + value.getName().replaceAll("\t", "\\t") + '\t' + value.getCreator().getToken();
+                String serValue = value.getToken() + '\t' + escape(value.getName()) + '\t' + value.getCreator().getToken();
+                RetentionPolicy policy = value.getRetentionPolicy();
+                if (policy == null) return serValue;
+                return serValue + '\t' + policy.getMaxMessages() + '\t' + policy.getMaxAgeSeconds() + '\t' + policy.getMaxBytes();
             }
 
             @Override
@@ -71,12 +84,22 @@ public class InMemoryWithFSPersistenceRepositories implements Repositories {
                 return serKey;
             }
 
+            @Override
+            protected RecordCodec<String, Room> codec() {
+                return CochatRecordCodecs.room(chatterRepository);
+            }
+
             @Override
             protected Room fromSerValue(String serValue) {
                 validateStringNotBlank(serValue, "serialized room value");
                 String[] fields = serValue.split("\t");
-                if (fields.length != 3) throw new IllegalArgumentException("invalid serialized room value " + serValue);
-                return new Room(chatterRepository.retrieve(fields[2]), fields[0], fields[1].replaceAll("\\t", "\t"));
+                if (fields.length != 3 && fields.length != 6) throw new IllegalArgumentException("invalid serialized room value " + serValue);
+                Room room = new Room(chatterRepository.retrieve(fields[2]), fields[0], unescape(fields[1]));
+                if (fields.length == 6) {
+                    room.setRetentionPolicy(new RetentionPolicy(Integer.parseInt(fields[3]), Integer.parseInt(fields[4]),
+                            Long.parseLong(fields[5])));
+                }
+                return room;
             }
         };
         this.messageRepository = new InMemoryWithFSPersistenceRepository<String, Message>(messageRepoPath, messageRepoPersistStrategy) {
@@ -91,16 +114,16 @@ public class InMemoryWithFSPersistenceRepositories implements Repositories {
                 if (value instanceof Text) {
                     Text text = (Text) value;
                     return "1\t" + text.getToken() + '\t' + text.getRoom().getToken() + '\t' + text.getAuthor().getToken() +
-                            '\t' + text.getTimestamp() + '\t' + text.getText().replaceAll("\t", "\\t");
+                            '\t' + text.getTimestamp() + '\t' + escape(text.getText()) + sequenceField(text);
                 } else if (value instanceof Image) {
                     Image image = (Image) value;
                     return "2\t" + image.getToken() + '\t' + image.getRoom().getToken() + '\t' + image.getAuthor().getToken() +
-                            '\t' + image.getTimestamp() + '\t' + image.getName().replaceAll("\t", "\\t") +
-                            '\t' + image.getHeight() + '\t' + image.getWidth();
+                            '\t' + image.getTimestamp() + '\t' + escape(image.getName()) +
+                            '\t' + image.getHeight() + '\t' + image.getWidth() + trailingFields(image);
                 } else if (value instanceof RawFile) {
                     RawFile file = (RawFile) value;
                     return "3\t" + file.getToken() + '\t' + file.getRoom().getToken() + '\t' + file.getAuthor().getToken() +
-                            '\t' + file.getTimestamp() + '\t' + file.getName().replaceAll("\t", "\\t");
+                            '\t' + file.getTimestamp() + '\t' + escape(file.getName()) + trailingFields(file);
                 }
                 throw new IllegalArgumentException("unknown message type " + value.getClass().getSimpleName());
             }
@@ -110,6 +133,11 @@ public class InMemoryWithFSPersistenceRepositories implements Repositories {
                 return serKey;
             }
 
+            @Override
+            protected RecordCodec<String, Message> codec() {
+                return CochatRecordCodecs.message(chatterRepository, roomRepository);
+            }
+
             @Override
             protected Message fromSerValue(String serValue) {
                 validateStringNotBlank(serValue, "serialized message value");
@@ -117,33 +145,60 @@ public class InMemoryWithFSPersistenceRepositories implements Repositories {
                 if (fields.length < 5) throw new IllegalArgumentException("invalid serialized message " + serValue);
                 int type = Integer.parseInt(fields[0]);
                 Message message;
+                String sequence;
                 switch (type) {
                     case 1:
                         if (fields.length < 6) throw new IllegalArgumentException("invalid serialized message " + serValue);
                         message = new Text(chatterRepository.retrieve(fields[3]), fields[1], Long.parseLong(fields[4]),
-                                fields[5].replaceAll("\\t", "\t"));
+                                unescape(fields[5]));
+                        sequence = optionalField(fields, 6);
                         break;
                     case 2:
                         if (fields.length < 8) throw new IllegalArgumentException("invalid serialized image " + serValue);
                         message = new Image(chatterRepository.retrieve(fields[3]), fields[1], Long.parseLong(fields[4]),
-                                fields[5].replaceAll("\\t", "\t"), Integer.parseInt(fields[6]),
-                                Integer.parseInt(fields[7]));
+                                unescape(fields[5]), optionalField(fields, 8),
+                                Integer.parseInt(fields[6]), Integer.parseInt(fields[7]));
+                        sequence = optionalField(fields, 9);
                         break;
                     case 3:
                         if (fields.length < 6) throw new IllegalArgumentException("invalid serialized file " + serValue);
                         message = new RawFile(chatterRepository.retrieve(fields[3]), fields[1], Long.parseLong(fields[4]),
-                                fields[5].replaceAll("\\t", "\t"));
+                                unescape(fields[5]), optionalField(fields, 6));
+                        sequence = optionalField(fields, 7);
                         break;
                     default:
                         throw new IllegalArgumentException("unknown message id " + type);
                 }
-                Room room = roomRepository.retrieve(fields[2]);
-                room.getMessages().add(message);
-                room.getMessages().sort(Comparator.comparing(Message::getTimestamp));
-                message.setRoom(room);
+                message.setRoom(roomRepository.retrieve(fields[2]));
+                if (sequence != null) message.setSequence(Long.parseLong(sequence));
                 return message;
             }
+
+            @Override
+            protected void onLoaded() {
+                Map<Room, List<Message>> timelines = map.values().parallelStream()
+                        .collect(Collectors.groupingByConcurrent(Message::getRoom));
+                timelines.entrySet().parallelStream().forEach(timeline -> timeline.getKey().getMessages().restore(timeline.getValue()));
+                log.info("restored {} messages into {} room timelines", map.size(), timelines.size());
+            }
         };
     }
 
+    /**
+     * @return the optional digest and sequence of a file message, the digest left empty if only the sequence is set
+     */
+    private static String trailingFields(RawFile file) {
+        String digest = file.getDigest() == null ? "" : file.getDigest();
+        if (file.getSequence() > 0) return "\t" + digest + "\t" + file.getSequence();
+        return digest.isEmpty() ? "" : "\t" + digest;
+    }
+
+    private static String sequenceField(Message message) {
+        return message.getSequence() > 0 ? "\t" + message.getSequence() : "";
+    }
+
+    private static String optionalField(String[] fields, int index) {
+        return fields.length > index && !fields[index].isEmpty() ? fields[index] : null;
+    }
+
 }
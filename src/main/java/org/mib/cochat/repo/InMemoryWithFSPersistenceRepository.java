@@ -1,124 +1,457 @@
 package org.mib.cochat.repo;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Summary;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static org.mib.common.validator.Validator.validateObjectNotNull;
 
 @Slf4j
 public abstract class InMemoryWithFSPersistenceRepository<K, V> extends InMemoryRepository<K, V> {
 
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int KEY_LOCK_STRIPES = 256;
+
+    private static final Gauge LOAD_SECONDS = Gauge.build()
+            .name("cochat_repository_load_seconds").help("time taken to recover a repository at startup")
+            .labelNames("repository").register();
+    private static final Summary PERSIST_SECONDS = Summary.build()
+            .name("cochat_persist_duration_seconds").help("time taken to write and install a repository snapshot")
+            .labelNames("repository").register();
+    private static final Summary PERSIST_LAG = Summary.build()
+            .name("cochat_persist_lag_seconds").help("delay between a snapshot being requested and started")
+            .labelNames("repository").register();
+    private static final Counter PERSISTED_BYTES = Counter.build()
+            .name("cochat_persisted_bytes_total").help("bytes of repository snapshots written")
+            .labelNames("repository").register();
+
     private final String fsPath;
+    private final String name;
     private final PersistStrategy strategy;
     private final AtomicInteger editAccumulator;
+    private final RecordCodec<K, V> codec;
+    private final Journal journal;
+    // every edit of a key journals and applies under the key's lock, and shares the roll lock while doing so
+    private final Striped<Lock> keyLocks;
+    private final ReadWriteLock rollLock;
+    private final ScheduledExecutorService persister;
+    private final AtomicBoolean persistPending;
+    private volatile long persistRequestedAt;
 
     public InMemoryWithFSPersistenceRepository(final String fsPath, final PersistStrategy strategy) {
         validateObjectNotNull(fsPath, "persistent file path");
         validateObjectNotNull(strategy, "persist strategy");
         this.fsPath = fsPath;
+        this.name = new File(fsPath).getName();
         this.strategy = strategy;
         this.editAccumulator = strategy.getMaxEditsAllowedBetweenPersists() > 0 ? new AtomicInteger(0) : null;
+        this.codec = codec();
 
-        loadPersisted();
+        long loadStart = System.nanoTime();
+        boolean legacy = loadPersisted();
+        onLoaded();
+        double loadSeconds = (System.nanoTime() - loadStart) / 1e9;
+        LOAD_SECONDS.labels(name).set(loadSeconds);
+        log.info("recovered {} entries of {} in {} ms", map.size(), fsPath, (long) (loadSeconds * 1000));
+        this.journal = strategy.isJournalEnabled() ? new Journal(fsPath) : null;
+        this.keyLocks = Striped.lock(KEY_LOCK_STRIPES);
+        this.rollLock = new ReentrantReadWriteLock();
+        if (legacy && isBinary()) {
+            log.info("converting legacy text snapshot {} to binary format...", fsPath);
+            persist();
+        } else if (journal == null && !Journal.segments(fsPath).isEmpty()) {
+            // left by a run with the journal enabled; replayed once, they'd revert later edits on every startup after
+            log.info("journal disabled, folding leftover journal segments of {} into a snapshot...", fsPath);
+            persist();
+        }
 
+        this.persister = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("persister-" + name).setDaemon(true).build());
+        this.persistPending = new AtomicBoolean(false);
         if (strategy.getPeriodicalPersistIntervalSeconds() > 0) {
             int interval = strategy.getPeriodicalPersistIntervalSeconds();
-            ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor();
-            ses.scheduleAtFixedRate(this::persist, interval, interval, TimeUnit.SECONDS);
+            persister.scheduleAtFixedRate(this::requestPersist, interval, interval, TimeUnit.SECONDS);
+        }
+        if (journal != null && strategy.getJournalSyncIntervalMillis() > 0) {
+            int interval = strategy.getJournalSyncIntervalMillis();
+            ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("journal-sync-" + name).setDaemon(true).build());
+            // an exception escaping the task would cancel every later sync without a trace
+            ses.scheduleAtFixedRate(() -> {
+                try {
+                    journal.sync();
+                } catch (Exception e) {
+                    log.error("failed to sync journal of {}, retrying in {} ms", fsPath, interval, e);
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
             Runtime.getRuntime().addShutdownHook(new Thread(ses::shutdown));
         }
-        Runtime.getRuntime().addShutdownHook(new Thread(this::persist));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            persister.shutdown();
+            persist();
+        }));
     }
 
     @Override
-    public boolean store(K key, V value) {
-        boolean result = super.store(key, value);
+    public V putIfAbsent(K key, V value) {
+        V existing = journal == null ? super.putIfAbsent(key, value) : journaled(key, () -> {
+            V current = map.get(key);
+            if (current != null) return current;
+            journalize(Journal.STORE, toRecord(key, value));
+            map.put(key, value);
+            return null;
+        });
+        accumulateAndPersistIfNecessary();
+        return existing;
+    }
+
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> function) {
+        V result = journal == null ? super.compute(key, function) : journaled(key, () -> {
+            V current = map.get(key);
+            V computed = function.apply(key, current);
+            if (computed != null) {
+                journalize(Journal.STORE, toRecord(key, computed));
+                map.put(key, computed);
+            } else if (current != null) {
+                journalize(Journal.DELETE, escape(serKey(key)));
+                map.remove(key);
+            }
+            return computed;
+        });
         accumulateAndPersistIfNecessary();
         return result;
     }
 
     @Override
     public boolean delete(K key) {
-        boolean result = super.delete(key);
+        boolean result = journal == null ? super.delete(key) : journaled(key, () -> {
+            if (!map.containsKey(key)) return false;
+            journalize(Journal.DELETE, escape(serKey(key)));
+            map.remove(key);
+            return true;
+        });
         accumulateAndPersistIfNecessary();
         return result;
     }
 
+    /**
+     * Runs an edit that journals its outcome before applying it to the map, under the lock of the key, so records of
+     * a key are journaled in the order they are applied and a failure to journal leaves the map untouched. Edits
+     * share the roll lock, so a roll never seals a record whose edit is not applied yet.
+     */
+    private <T> T journaled(K key, Supplier<T> edit) {
+        Lock keyLock = keyLocks.get(key);
+        keyLock.lock();
+        rollLock.readLock().lock();
+        try {
+            return edit.get();
+        } finally {
+            rollLock.readLock().unlock();
+            keyLock.unlock();
+        }
+    }
+
+    private void journalize(char op, String record) {
+        journal.append(op, record);
+        if (strategy.getJournalSyncIntervalMillis() <= 0) journal.sync();
+    }
+
     private void accumulateAndPersistIfNecessary() {
         if (editAccumulator == null) return;
         int accumulated = editAccumulator.incrementAndGet();
         if (accumulated >= strategy.getMaxEditsAllowedBetweenPersists()) {
             editAccumulator.addAndGet(-accumulated);
-            new Thread(this::persist).start();
+            requestPersist();
         }
     }
 
-    private synchronized void loadPersisted() {
+    /**
+     * Queues a snapshot on the persister unless one is already pending, so a burst of edits costs at most one
+     * snapshot on top of the one being written.
+     */
+    private void requestPersist() {
+        if (!persistPending.compareAndSet(false, true)) return;
+        persistRequestedAt = System.nanoTime();
+        try {
+            persister.execute(() -> {
+                persistPending.set(false);
+                PERSIST_LAG.labels(name).observe((System.nanoTime() - persistRequestedAt) / 1e9);
+                try {
+                    persist();
+                } catch (Exception e) {
+                    log.error("failed to persist snapshot of {}", fsPath, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            persistPending.set(false);
+            log.debug("persister of {} shut down, snapshot left to shutdown hook", fsPath);
+        }
+    }
+
+    /**
+     * @return whether the snapshot loaded was in the legacy text format
+     */
+    private synchronized boolean loadPersisted() {
+        Map<String, String> tail = replayJournal();
         File file = new File(fsPath);
-        if (!file.exists()) return;
+        boolean legacy = false;
+        try {
+            if (file.exists() && Snapshot.isBinary(file)) {
+                if (codec == null) throw new IllegalStateException("no codec to load binary snapshot " + fsPath);
+                Snapshot.read(file, codec, key -> !tail.containsKey(serKey(key)), map::put);
+            } else if (file.exists()) {
+                loadText(file, tail);
+                legacy = true;
+            }
+        } catch (IOException e) {
+            log.error("failed to load persisted from {}", fsPath, e);
+            throw new RuntimeException(e);
+        }
+        tail.forEach((serKey, serValue) -> {
+            if (serValue != null) map.put(fromSerKey(serKey), fromSerValue(serValue));
+        });
+        return legacy;
+    }
+
+    private void loadText(File file, Map<String, String> tail) throws IOException {
         String line;
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(openText(file), StandardCharsets.UTF_8))) {
             while ((line = br.readLine()) != null) {
                 if (StringUtils.isBlank(line)) continue;
                 int separatorIndex = line.indexOf('\t');
                 if (separatorIndex <= 0) continue;
-                line = line.replaceAll("\\n", "\n");
-                K key = fromSerKey(line.substring(0, separatorIndex));
-                V value = fromSerValue(line.substring(separatorIndex + 1));
-                map.put(key, value);
+                String serKey = unescape(line.substring(0, separatorIndex));
+                if (tail.containsKey(serKey)) continue;
+                map.put(fromSerKey(serKey), fromSerValue(unescape(line.substring(separatorIndex + 1))));
             }
+        }
+    }
+
+    /**
+     * Folds all journal segments left on disk into the latest serialized value per key, a null value meaning
+     * the key was deleted after the last snapshot.
+     */
+    private Map<String, String> replayJournal() {
+        Map<String, String> tail = Maps.newLinkedHashMap();
+        for (File segment : Journal.segments(fsPath)) {
+            log.info("replaying journal segment {}...", segment.getAbsolutePath());
+            String line;
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(segment), StandardCharsets.UTF_8))) {
+                while ((line = br.readLine()) != null) {
+                    if (StringUtils.isBlank(line)) continue;
+                    if (line.length() < 3 || line.charAt(1) != '\t') {
+                        log.warn("skipping malformed journal record {} in {}", line, segment.getAbsolutePath());
+                        continue;
+                    }
+                    String record = line.substring(2);
+                    int separatorIndex = record.indexOf('\t');
+                    String serKey = unescape(separatorIndex < 0 ? record : record.substring(0, separatorIndex));
+                    tail.remove(serKey);
+                    if (line.charAt(0) == Journal.STORE && separatorIndex > 0) {
+                        tail.put(serKey, unescape(record.substring(separatorIndex + 1)));
+                    } else {
+                        tail.put(serKey, null);
+                    }
+                }
+            } catch (IOException e) {
+                log.error("failed to replay journal segment {}", segment.getAbsolutePath(), e);
+                throw new RuntimeException(e);
+            }
+        }
+        return tail;
+    }
+
+    /**
+     * Writes a snapshot next to the current one and atomically replaces it. Entries are iterated weakly consistent
+     * without blocking writers, so the snapshot holds every edit completed before it started but only some of the
+     * ones racing with it, and is not a point-in-time image of the repository. With the journal enabled, the roll
+     * waits for edits between journaling and applying, so every edit in a sealed segment is in the snapshot and
+     * racing ones land in the new segment, which is replayed over the snapshot, so recovery is exact. Without it, racing edits missed here are only persisted by a later snapshot, and a crash
+     * before that loses them like any other edit since the last snapshot.
+     */
+    @VisibleForTesting
+    synchronized void persist() {
+        Summary.Timer timer = PERSIST_SECONDS.labels(name).startTimer();
+        // with the journal disabled, the only segments are the ones replayed at startup
+        List<File> sealed = journal == null ? Journal.segments(fsPath) : roll();
+        File tmp = new File(fsPath + TMP_SUFFIX);
+        try {
+            if (isBinary()) {
+                Snapshot.write(tmp, map.entrySet(), codec, strategy.isCompressionEnabled());
+            } else {
+                writeText(tmp);
+            }
+            PERSISTED_BYTES.labels(name).inc(tmp.length());
+            Path cur = Paths.get(fsPath);
+            Files.move(tmp.toPath(), cur, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            force(cur.toAbsolutePath().getParent());
         } catch (IOException e) {
-            log.error("failed to load persisted from {}", fsPath, e);
+            log.error("failed to persist {} via {}", fsPath, tmp.getAbsolutePath(), e);
+            if (tmp.exists() && !tmp.delete()) log.error("failed to delete tmp file {}", tmp.getAbsolutePath());
             throw new RuntimeException(e);
         }
+        sealed.forEach(segment -> {
+            if (!segment.delete()) log.error("failed to delete compacted journal segment {}", segment.getAbsolutePath());
+        });
+        log.debug("persisted {} entries of {} in {} seconds", map.size(), fsPath, timer.observeDuration());
+    }
+
+    private List<File> roll() {
+        rollLock.writeLock().lock();
+        try {
+            return journal.roll();
+        } finally {
+            rollLock.writeLock().unlock();
+        }
     }
 
-    private synchronized void persist() {
-        File tmp = new File(fsPath + "." + System.currentTimeMillis());
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(tmp))) {
+    /**
+     * Flushes the file, or directory entries, at the path to disk. Not every platform can open a directory for
+     * that, in which case the rename is left to the file system.
+     */
+    private static void force(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.debug("unable to force {} to disk", path, e);
+        }
+    }
+
+    /**
+     * @return stream of the text snapshot, gunzipped if it was written compressed
+     */
+    private static InputStream openText(File file) throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(file));
+        is.mark(2);
+        int magic = is.read() | (is.read() << 8);
+        is.reset();
+        return magic == GZIPInputStream.GZIP_MAGIC ? new GZIPInputStream(is) : is;
+    }
+
+    private void writeText(File file) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        OutputStream os = strategy.isCompressionEnabled() ? new GZIPOutputStream(fos) : fos;
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8))) {
             for (Map.Entry<K, V> kv : map.entrySet()) {
-                String line = serKey(kv.getKey()) + '\t' + serValue(kv.getValue());
-                bw.write(line.replaceAll("\n", "\\n"));
+                bw.write(toRecord(kv.getKey(), kv.getValue()));
                 bw.newLine();
             }
-        } catch (IOException e) {
-            log.error("failed to persist to {}", tmp.getAbsolutePath(), e);
-            if (!tmp.delete()) log.error("failed to delete tmp file {}", tmp.getAbsolutePath());
-            throw new RuntimeException(e);
+            bw.flush();
+            if (os instanceof GZIPOutputStream) ((GZIPOutputStream) os).finish();
+            fos.getChannel().force(true);
         }
-        File cur = new File(fsPath), origin = new File(fsPath + ".origin");
-        if (cur.exists()) {
-            if (!cur.renameTo(origin)) {
-                log.error("failed to rename {} to {}", cur.getAbsolutePath(), origin.getAbsolutePath());
-                throw new RuntimeException("unable to rename cur file " + cur.getAbsolutePath());
+    }
+
+    private boolean isBinary() {
+        return codec != null && strategy.isBinaryFormatEnabled();
+    }
+
+    private String toRecord(K key, V value) {
+        return escape(serKey(key)) + '\t' + escape(serValue(value));
+    }
+
+    /**
+     * Escapes backslashes, line breaks and tabs, so the text holds neither record nor field separators and a single
+     * pass of {@link #unescape(String)} restores it.
+     */
+    static String escape(String text) {
+        if (StringUtils.containsNone(text, '\\', '\n', '\r', '\t')) return text;
+        StringBuilder sb = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    sb.append(c);
             }
         }
-        if (!tmp.renameTo(cur)) {
-            log.error("failed to rename {} to {}", tmp.getAbsolutePath(), cur.getAbsolutePath());
-            if (!origin.renameTo(cur)) {
-                log.error("failed to rename origin {} back to {}", origin.getAbsolutePath(), cur.getAbsolutePath());
-                throw new RuntimeException("failed to roll back transaction for tmp " + tmp.getAbsolutePath());
+        return sb.toString();
+    }
+
+    /**
+     * Reverses {@link #escape(String)}. A backslash followed by anything else is kept as is, which is how snapshots
+     * written before escaping held them.
+     */
+    static String unescape(String text) {
+        if (text.indexOf('\\') < 0) return text;
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != '\\' || i + 1 == text.length()) {
+                sb.append(c);
+                continue;
             }
-            throw new RuntimeException("unable to rename tmp file " + tmp.getAbsolutePath());
-        }
-        if (origin.exists()) {
-            if (!origin.delete()) {
-                log.error("failed to delete original file {}", origin.getAbsolutePath());
-                throw new RuntimeException("unable to delete original file " + origin.getAbsolutePath());
+            char escaped = text.charAt(++i);
+            switch (escaped) {
+                case '\\':
+                    sb.append('\\');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                default:
+                    sb.append(c).append(escaped);
             }
         }
+        return sb.toString();
     }
 
     protected abstract String serKey(K key);
@@ -128,4 +461,18 @@ public abstract class InMemoryWithFSPersistenceRepository<K, V> extends InMemory
     protected abstract K fromSerKey(String serKey);
 
     protected abstract V fromSerValue(String serValue);
+
+    /**
+     * Invoked once all persisted entries are loaded, before the repository is used, e.g. to build indexes over them.
+     */
+    protected void onLoaded() {
+    }
+
+    /**
+     * @return codec of binary snapshots, or null if the repository only supports the text format; the text serde
+     * above is still used by the journal and to load legacy snapshots
+     */
+    protected RecordCodec<K, V> codec() {
+        return null;
+    }
 }
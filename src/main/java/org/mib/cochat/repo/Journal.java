@@ -0,0 +1,130 @@
+package org.mib.cochat.repo;
+
+import com.google.common.collect.Lists;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.mib.common.validator.Validator.validateStringNotBlank;
+
+/**
+ * Append-only edit log made of numbered segments next to the snapshot file, i.e. {@code <path>.journal.<id>}.
+ * Records are buffered and made durable in batches by {@link #sync()}; {@link #roll()} seals the current segment
+ * so it can be dropped once a snapshot covering it has been written.
+ */
+@Slf4j
+class Journal implements Closeable {
+
+    static final char STORE = 'S';
+    static final char DELETE = 'D';
+
+    private static final String SEGMENT_INFIX = ".journal.";
+
+    private final String basePath;
+    private long segmentId;
+    private FileOutputStream fos;
+    private BufferedWriter writer;
+    private boolean dirty;
+
+    Journal(final String basePath) {
+        validateStringNotBlank(basePath, "journal base path");
+        this.basePath = basePath;
+        List<File> segments = segments(basePath);
+        this.segmentId = segments.isEmpty() ? 0 : segmentId(segments.get(segments.size() - 1)) + 1;
+        open();
+    }
+
+    synchronized void append(char op, String record) {
+        try {
+            writer.write(op);
+            writer.write('\t');
+            writer.write(record);
+            writer.newLine();
+            dirty = true;
+        } catch (IOException e) {
+            log.error("failed to append to journal segment {}", segmentPath(segmentId), e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    synchronized void sync() {
+        if (!dirty) return;
+        try {
+            writer.flush();
+            fos.getChannel().force(false);
+            dirty = false;
+        } catch (IOException e) {
+            log.error("failed to sync journal segment {}", segmentPath(segmentId), e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Seals the current segment and starts a new one.
+     *
+     * @return all sealed segments, oldest first
+     */
+    synchronized List<File> roll() {
+        sync();
+        closeQuietly();
+        segmentId++;
+        open();
+        List<File> sealed = segments(basePath);
+        sealed.removeIf(segment -> segmentId(segment) >= segmentId);
+        return sealed;
+    }
+
+    @Override
+    public synchronized void close() {
+        sync();
+        closeQuietly();
+    }
+
+    static List<File> segments(String basePath) {
+        File base = new File(basePath).getAbsoluteFile();
+        String prefix = base.getName() + SEGMENT_INFIX;
+        File[] files = base.getParentFile().listFiles((dir, name) -> name.startsWith(prefix) &&
+                StringUtils.isNumeric(name.substring(prefix.length())));
+        List<File> segments = files == null ? Lists.newArrayList() : Lists.newArrayList(files);
+        segments.sort(Comparator.comparingLong(Journal::segmentId));
+        return segments;
+    }
+
+    private static long segmentId(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+    }
+
+    private void open() {
+        String path = segmentPath(segmentId);
+        try {
+            this.fos = new FileOutputStream(path, true);
+            this.writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8));
+            this.dirty = false;
+        } catch (IOException e) {
+            log.error("failed to open journal segment {}", path, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            log.error("failed to close journal segment {}", segmentPath(segmentId), e);
+        }
+    }
+
+    private String segmentPath(long id) {
+        return basePath + SEGMENT_INFIX + id;
+    }
+}
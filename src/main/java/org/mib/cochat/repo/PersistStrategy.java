@@ -11,4 +11,7 @@ public class PersistStrategy {
     private boolean compressionEnabled;
     private int maxEditsAllowedBetweenPersists;
     private int periodicalPersistIntervalSeconds;
+    private boolean journalEnabled;
+    private int journalSyncIntervalMillis;
+    private boolean binaryFormatEnabled;
 }
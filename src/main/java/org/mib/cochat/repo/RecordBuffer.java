@@ -0,0 +1,111 @@
+package org.mib.cochat.repo;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.mib.common.validator.Validator.validateObjectNotNull;
+
+/**
+ * Cursor over a binary record: unsigned LEB128 varints and varint length-prefixed UTF-8 strings. Writing grows
+ * the backing heap buffer as needed; reading works on any buffer, memory-mapped included.
+ */
+public class RecordBuffer {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private ByteBuffer buffer;
+    private byte[] scratch;
+
+    RecordBuffer() {
+        this(ByteBuffer.allocate(INITIAL_CAPACITY));
+    }
+
+    RecordBuffer(final ByteBuffer buffer) {
+        validateObjectNotNull(buffer, "record byte buffer");
+        this.buffer = buffer;
+        this.scratch = new byte[INITIAL_CAPACITY];
+    }
+
+    public RecordBuffer putByte(int b) {
+        ensureCapacity(1);
+        buffer.put((byte) b);
+        return this;
+    }
+
+    public RecordBuffer putVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+        return this;
+    }
+
+    public RecordBuffer putVarInt(int value) {
+        return putVarLong(value & 0xFFFFFFFFL);
+    }
+
+    public RecordBuffer putString(String value) {
+        validateObjectNotNull(value, "string");
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putVarInt(bytes.length);
+        ensureCapacity(bytes.length);
+        buffer.put(bytes);
+        return this;
+    }
+
+    public int getByte() {
+        return buffer.get() & 0xFF;
+    }
+
+    public long getVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalStateException("malformed varint at " + buffer.position());
+    }
+
+    public int getVarInt() {
+        long value = getVarLong();
+        if ((value & ~0xFFFFFFFFL) != 0) throw new IllegalStateException("varint overflows int at " + buffer.position());
+        return (int) value;
+    }
+
+    public String getString() {
+        int length = getVarInt();
+        if (length > buffer.remaining()) throw new IllegalStateException("string length " + length + " overruns record");
+        if (buffer.hasArray()) {
+            String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+        if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+        buffer.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    void clear() {
+        buffer.clear();
+    }
+
+    void reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (buffer.remaining() >= bytes) return;
+        if (buffer.isReadOnly() || !buffer.hasArray()) throw new IllegalStateException("record buffer not growable");
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
@@ -0,0 +1,15 @@
+package org.mib.cochat.repo;
+
+/**
+ * Binary serde of repository entries for {@link Snapshot}s. Decoding must consume exactly what encoding wrote.
+ */
+public interface RecordCodec<K, V> {
+
+    void encodeKey(K key, RecordBuffer out);
+
+    void encodeValue(V value, RecordBuffer out);
+
+    K decodeKey(RecordBuffer in);
+
+    V decodeValue(RecordBuffer in);
+}
@@ -1,10 +1,47 @@
 package org.mib.cochat.repo;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
 public interface Repository<K, V> {
 
     V retrieve(K key);
 
+    /**
+     * @return values of the given keys that are present
+     */
+    Map<K, V> retrieveAll(Collection<? extends K> keys);
+
+    /**
+     * @return whether the value got stored, false if the key is taken
+     */
     boolean store(K key, V value);
 
+    /**
+     * Atomically stores the value unless the key is taken.
+     *
+     * @return value already stored under the key, or null if the given value got stored
+     */
+    V putIfAbsent(K key, V value);
+
+    /**
+     * @return number of entries stored, entries whose keys are taken are skipped
+     */
+    int storeAll(Map<? extends K, ? extends V> entries);
+
+    /**
+     * Atomically replaces the value of the key with the one computed from the current value, null if absent. A null
+     * result removes the key.
+     *
+     * @return the new value
+     */
+    V compute(K key, BiFunction<? super K, ? super V, ? extends V> function);
+
     boolean delete(K key);
+
+    int size();
+
+    void forEach(BiConsumer<? super K, ? super V> action);
 }
@@ -0,0 +1,288 @@
+package org.mib.cochat.repo;
+
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.mib.common.validator.Validator.validateObjectNotNull;
+
+/**
+ * Binary snapshot file of a repository: an 8 byte header (magic, format version, flags, reserved) followed by
+ * blocks of about {@value #BLOCK_BYTES} bytes of records, each record a varint byte length and the key and value as
+ * written by a {@link RecordCodec}. A block is stored as its raw length, stored length and CRC32 of the raw bytes
+ * followed by the stored bytes, which are deflated when the compressed flag is set.
+ * <p>
+ * Blocks are self-contained, so loading first walks the block headers and then decodes all blocks in parallel on
+ * the common fork-join pool; uncompressed blocks are decoded straight from memory-mapped regions of the file.
+ * Files of any other version are rejected; the only format migrated from is the legacy text one.
+ */
+class Snapshot {
+
+    private static final byte[] MAGIC = {'C', 'C', 'H', 'T'};
+    private static final byte VERSION = 2;
+    private static final byte COMPRESSED = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int BLOCK_HEADER_BYTES = 12;
+    private static final int BLOCK_BYTES = 256 << 10;
+    private static final int MAX_VARINT_BYTES = 5;
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+    private Snapshot() {}
+
+    /**
+     * @return whether the file starts with a binary snapshot header, as opposed to the legacy text format
+     */
+    static boolean isBinary(File file) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        try (FileInputStream fis = new FileInputStream(file)) {
+            return fis.read(magic) == magic.length && Arrays.equals(magic, MAGIC);
+        }
+    }
+
+    static <K, V> void write(File file, Iterable<Map.Entry<K, V>> entries, RecordCodec<K, V> codec, boolean compressed) throws IOException {
+        validateObjectNotNull(entries, "snapshot entries");
+        validateObjectNotNull(codec, "record codec");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+            out.put(MAGIC).put(VERSION).put(compressed ? COMPRESSED : 0).putShort((short) 0);
+            BlockWriter blocks = new BlockWriter(channel, out, compressed);
+            RecordBuffer record = new RecordBuffer();
+            try {
+                for (Map.Entry<K, V> entry : entries) {
+                    record.clear();
+                    codec.encodeKey(entry.getKey(), record);
+                    codec.encodeValue(entry.getValue(), record);
+                    ByteBuffer bytes = record.buffer();
+                    bytes.flip();
+                    blocks.append(bytes);
+                }
+                blocks.flush();
+            } finally {
+                if (blocks.deflater != null) blocks.deflater.end();
+            }
+            drain(channel, out);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Decodes every record of the file, skipping the values of keys rejected by the filter. Records are decoded
+     * concurrently and in no particular order, so the codec, filter and consumer must be thread safe.
+     */
+    static <K, V> void read(File file, RecordCodec<K, V> codec, Predicate<K> filter, BiConsumer<K, V> consumer) throws IOException {
+        validateObjectNotNull(codec, "record codec");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES) throw new IllegalStateException("not a binary snapshot " + file.getAbsolutePath());
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IllegalStateException("not a binary snapshot " + file.getAbsolutePath());
+            byte version = header.get();
+            if (version != VERSION) {
+                throw new IllegalStateException("unsupported snapshot version " + version + " of " + file.getAbsolutePath());
+            }
+            readBlocks(file, channel, (header.get() & COMPRESSED) != 0, codec, filter, consumer);
+        }
+    }
+
+    private static <K, V> void readBlocks(File file, FileChannel channel, boolean compressed, RecordCodec<K, V> codec,
+                                          Predicate<K> filter, BiConsumer<K, V> consumer) throws IOException {
+        long size = channel.size();
+        long position = HEADER_BYTES;
+        ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+        List<Block> blocks = Lists.newArrayList();
+        while (position < size) {
+            if (size - position < BLOCK_HEADER_BYTES) throw new IllegalStateException("truncated block at " + position + " of " + file.getAbsolutePath());
+            blockHeader.clear();
+            readFully(channel, blockHeader, position);
+            blockHeader.flip();
+            Block block = new Block(position, blockHeader.getInt(), blockHeader.getInt(), blockHeader.getInt() & 0xFFFFFFFFL);
+            if (block.rawLength < 0 || block.storedLength < 0 || size - position - BLOCK_HEADER_BYTES < block.storedLength ||
+                    (!compressed && block.rawLength != block.storedLength)) {
+                throw new IllegalStateException("truncated block at " + position + " of " + file.getAbsolutePath());
+            }
+            blocks.add(block);
+            position += BLOCK_HEADER_BYTES + block.storedLength;
+        }
+        blocks.parallelStream().forEach(block -> {
+            try {
+                ByteBuffer raw = compressed ? inflate(channel, block) :
+                        channel.map(FileChannel.MapMode.READ_ONLY, block.position + BLOCK_HEADER_BYTES, block.rawLength);
+                CRC32 crc = new CRC32();
+                crc.update(raw.duplicate());
+                if (raw.remaining() != block.rawLength || crc.getValue() != block.checksum) {
+                    throw new IllegalStateException("checksum mismatch of block at " + block.position + " of " + file.getAbsolutePath());
+                }
+                RecordBuffer record = new RecordBuffer(raw);
+                while (raw.hasRemaining()) {
+                    record.reset(raw);
+                    int length = record.getVarInt();
+                    if (raw.remaining() < length) throw new IllegalStateException("record overruns block at " + block.position + " of " + file.getAbsolutePath());
+                    decode(raw, length, record, codec, filter, consumer);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("failed to read block at " + block.position + " of " + file.getAbsolutePath(), e);
+            }
+        });
+    }
+
+    private static ByteBuffer inflate(FileChannel channel, Block block) throws IOException {
+        byte[] stored = new byte[block.storedLength], raw = new byte[block.rawLength];
+        readFully(channel, ByteBuffer.wrap(stored), block.position + BLOCK_HEADER_BYTES);
+        Inflater inflater = new Inflater();
+        int inflated = 0;
+        try {
+            inflater.setInput(stored);
+            while (inflated < raw.length && !inflater.finished()) {
+                int n = inflater.inflate(raw, inflated, raw.length - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("corrupted block at " + block.position, e);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(raw, 0, inflated);
+    }
+
+    /**
+     * Decodes the record of the given length at the buffer position, advancing the buffer past it.
+     */
+    private static <K, V> void decode(ByteBuffer buffer, int length, RecordBuffer record, RecordCodec<K, V> codec,
+                                      Predicate<K> filter, BiConsumer<K, V> consumer) {
+        ByteBuffer bytes = buffer.slice();
+        bytes.limit(length);
+        buffer.position(buffer.position() + length);
+        record.reset(bytes);
+        K key = codec.decodeKey(record);
+        if (!filter.test(key)) return;
+        V value = codec.decodeValue(record);
+        if (bytes.hasRemaining()) throw new IllegalStateException("record of key " + key + " not fully decoded");
+        consumer.accept(key, value);
+    }
+
+    private static void putVarInt(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer out, ByteBuffer bytes) throws IOException {
+        if (out.remaining() < bytes.remaining()) {
+            drain(channel, out);
+            if (out.remaining() < bytes.remaining()) {
+                while (bytes.hasRemaining()) channel.write(bytes);
+                return;
+            }
+        }
+        out.put(bytes);
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) channel.write(out);
+        out.clear();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) throw new IllegalStateException("unexpected end of snapshot at " + position);
+            position += n;
+        }
+    }
+
+    private static class Block {
+
+        private final long position;
+        private final int rawLength;
+        private final int storedLength;
+        private final long checksum;
+
+        Block(final long position, final int rawLength, final int storedLength, final long checksum) {
+            this.position = position;
+            this.rawLength = rawLength;
+            this.storedLength = storedLength;
+            this.checksum = checksum;
+        }
+    }
+
+    private static class BlockWriter {
+
+        private final FileChannel channel;
+        private final ByteBuffer out;
+        private final Deflater deflater;
+        private final CRC32 crc;
+        private ByteBuffer block;
+        private byte[] deflated;
+
+        BlockWriter(final FileChannel channel, final ByteBuffer out, final boolean compressed) {
+            this.channel = channel;
+            this.out = out;
+            this.deflater = compressed ? new Deflater(Deflater.BEST_SPEED) : null;
+            this.crc = new CRC32();
+            this.block = ByteBuffer.allocate(BLOCK_BYTES);
+            this.deflated = compressed ? new byte[BLOCK_BYTES] : null;
+        }
+
+        void append(ByteBuffer record) throws IOException {
+            int framed = MAX_VARINT_BYTES + record.remaining();
+            if (block.remaining() < framed) {
+                flush();
+                // a record larger than a block is stored as a block of its own
+                if (block.capacity() < framed) block = ByteBuffer.allocate(framed);
+            }
+            putVarInt(block, record.remaining());
+            block.put(record);
+        }
+
+        void flush() throws IOException {
+            int rawLength = block.position();
+            if (rawLength == 0) return;
+            crc.reset();
+            crc.update(block.array(), 0, rawLength);
+            if (out.remaining() < BLOCK_HEADER_BYTES) drain(channel, out);
+            if (deflater != null) {
+                deflater.reset();
+                deflater.setInput(block.array(), 0, rawLength);
+                deflater.finish();
+                int storedLength = 0;
+                while (!deflater.finished()) {
+                    if (storedLength == deflated.length) deflated = Arrays.copyOf(deflated, deflated.length * 2);
+                    storedLength += deflater.deflate(deflated, storedLength, deflated.length - storedLength);
+                }
+                out.putInt(rawLength).putInt(storedLength).putInt((int) crc.getValue());
+                write(channel, out, ByteBuffer.wrap(deflated, 0, storedLength));
+            } else {
+                out.putInt(rawLength).putInt(rawLength).putInt((int) crc.getValue());
+                block.flip();
+                write(channel, out, block);
+            }
+            if (block.capacity() > BLOCK_BYTES) {
+                block = ByteBuffer.allocate(BLOCK_BYTES);
+            } else {
+                block.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.mib.cochat.rest;
+
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.ETag;
+import io.undertow.util.ETagUtils;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.mib.common.validator.Validator.validateStringNotBlank;
+
+/**
+ * Static assets held in direct buffers, each with a gzip variant when that is smaller. Requests are answered on the io
+ * thread without touching the disk: conditional requests by content hash, bodies by duplicating the buffers.
+ * Optionally watches the assets directory and swaps in changed files once they settle. A missing directory leaves
+ * the cache empty, answering every request with a 404.
+ */
+@Slf4j
+class AssetCache {
+
+    private static final String CACHE_CONTROL = "no-cache";
+    private static final String GZIP = "gzip";
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    private static final long SETTLE_MILLIS = 200;
+
+    private final Path directory;
+    private final Map<String, Asset> assets;
+
+    AssetCache(final String directory, final boolean hotReload) {
+        validateStringNotBlank(directory, "assets directory");
+        this.directory = Paths.get(directory);
+        this.assets = Maps.newConcurrentMap();
+        if (!Files.isDirectory(this.directory)) {
+            log.warn("assets directory {} not found, no assets will be served", this.directory.toAbsolutePath());
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+            for (Path file : files) {
+                load(file);
+            }
+        } catch (IOException e) {
+            log.error("failed to load assets from {}", directory, e);
+            throw new RuntimeException(e);
+        }
+        log.info("cached {} assets from {}", assets.size(), directory);
+        if (hotReload) watch();
+    }
+
+    /**
+     * Sends the named asset, from the io thread.
+     */
+    void send(HttpServerExchange exchange, String name) {
+        Asset asset = assets.get(name);
+        if (asset == null) {
+            log.warn("asset {} not found", name);
+            exchange.setStatusCode(StatusCodes.NOT_FOUND);
+            exchange.endExchange();
+            return;
+        }
+        HeaderMap headers = exchange.getResponseHeaders();
+        headers.put(Headers.ETAG, asset.etag.toString());
+        headers.put(Headers.CACHE_CONTROL, CACHE_CONTROL);
+        headers.put(Headers.VARY, Headers.ACCEPT_ENCODING_STRING);
+        if (!ETagUtils.handleIfNoneMatch(exchange, asset.etag, false)) {
+            exchange.setStatusCode(StatusCodes.NOT_MODIFIED);
+            exchange.endExchange();
+            return;
+        }
+        ByteBuffer body = asset.content;
+        if (asset.gzipped != null && acceptsGzip(exchange.getRequestHeaders().getFirst(Headers.ACCEPT_ENCODING))) {
+            body = asset.gzipped;
+            headers.put(Headers.CONTENT_ENCODING, GZIP);
+        }
+        headers.put(Headers.CONTENT_TYPE, asset.contentType);
+        headers.put(Headers.CONTENT_LENGTH, body.remaining());
+        exchange.setStatusCode(StatusCodes.OK);
+        exchange.getResponseSender().send(body.duplicate());
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (StringUtils.isBlank(acceptEncoding)) return false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (!GZIP.equalsIgnoreCase(parts[0].trim())) continue;
+            return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the file changed while being read, leaving the cached asset as it was
+     */
+    private boolean load(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) return true;
+        String name = file.getFileName().toString();
+        FileTime modified = Files.getLastModifiedTime(file);
+        long size = Files.size(file);
+        byte[] bytes = Files.readAllBytes(file);
+        if (bytes.length != size || !modified.equals(Files.getLastModifiedTime(file))) return false;
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(bytes);
+        }
+        String contentType = Files.probeContentType(file);
+        Asset asset = new Asset(
+                direct(bytes),
+                compressed.size() < bytes.length ? direct(compressed.toByteArray()) : null,
+                contentType == null ? DEFAULT_CONTENT_TYPE : contentType,
+                new ETag(false, Hashing.murmur3_128().hashBytes(bytes).toString())
+        );
+        assets.put(name, asset);
+        log.debug("cached asset {} of {} bytes, {} gzipped", name, bytes.length, asset.gzipped == null ? "not" : asset.gzipped.remaining());
+        return true;
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private void watch() {
+        WatchService watcher;
+        try {
+            watcher = directory.getFileSystem().newWatchService();
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            log.error("failed to watch assets directory {}", directory, e);
+            throw new RuntimeException(e);
+        }
+        Thread reloader = new ThreadFactoryBuilder().setNameFormat("asset-reloader").setDaemon(true).build().newThread(() -> {
+            // files with pending changes to the time of their last event; modify events fire while a file is written
+            Map<Path, Long> settling = Maps.newHashMap();
+            while (true) {
+                WatchKey key;
+                try {
+                    key = settling.isEmpty() ? watcher.take() : watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) continue;
+                        settling.put(directory.resolve((Path) event.context()), System.currentTimeMillis());
+                    }
+                    if (!key.reset()) {
+                        log.warn("assets directory {} no longer watched", directory);
+                        return;
+                    }
+                }
+                long now = System.currentTimeMillis();
+                settling.entrySet().removeIf(pending -> now - pending.getValue() >= SETTLE_MILLIS && reload(pending.getKey()));
+            }
+        });
+        reloader.start();
+        log.info("watching assets directory {} for changes", directory);
+    }
+
+    /**
+     * @return whether the file settled, i.e. it's gone or was read without changing underneath
+     */
+    private boolean reload(Path file) {
+        try {
+            if (!Files.exists(file)) {
+                assets.remove(file.getFileName().toString());
+                log.info("dropped deleted asset {}", file);
+                return true;
+            }
+            if (!load(file)) {
+                log.debug("asset {} changed while reloading, retrying...", file);
+                return false;
+            }
+            log.info("reloaded asset {}", file);
+        } catch (IOException e) {
+            log.error("failed to reload asset {}", file, e);
+        }
+        return true;
+    }
+
+    private static class Asset {
+
+        private final ByteBuffer content;
+        private final ByteBuffer gzipped;
+        private final String contentType;
+        private final ETag etag;
+
+        Asset(final ByteBuffer content, final ByteBuffer gzipped, final String contentType, final ETag etag) {
+            this.content = content;
+            this.gzipped = gzipped;
+            this.contentType = contentType;
+            this.etag = etag;
+        }
+    }
+}
@@ -1,52 +1,62 @@
 package org.mib.cochat.rest;
 
+import com.google.common.collect.Lists;
 import com.networknt.handler.HandlerProvider;
 import com.networknt.health.HealthGetHandler;
 import com.networknt.metrics.prometheus.PrometheusGetHandler;
 import io.undertow.Handlers;
-import io.undertow.io.IoCallback;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.server.handlers.Cookie;
-import io.undertow.server.handlers.form.EagerFormParsingHandler;
-import io.undertow.server.handlers.form.FormData;
-import io.undertow.server.handlers.form.FormDataParser;
 import io.undertow.util.HeaderMap;
 import io.undertow.util.Headers;
 import io.undertow.util.HttpString;
+import io.undertow.util.SameThreadExecutor;
 import io.undertow.util.StatusCodes;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.mib.cochat.chatter.Chatter;
 import org.mib.cochat.message.Image;
+import org.mib.cochat.message.Information;
+import org.mib.cochat.message.InformationJson;
 import org.mib.cochat.message.Message;
 import org.mib.cochat.message.RawFile;
+import org.mib.cochat.room.ColdStorage;
+import org.mib.cochat.room.MessageTimeline;
+import org.mib.cochat.room.RetentionPolicy;
 import org.mib.cochat.room.Room;
 import org.mib.cochat.service.ChatterService;
 import org.mib.cochat.service.FileService;
 import org.mib.cochat.service.MessageService;
+import org.mib.cochat.service.RoomListener;
 import org.mib.cochat.service.RoomService;
 import org.mib.cochat.service.ServiceFactory;
 import org.mib.common.config.ConfigProvider;
 import org.mib.rest.exception.BadRequestException;
+import org.xnio.IoUtils;
+import org.xnio.XnioExecutor;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.util.Deque;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import static org.mib.cochat.rest.ContextInjectionHandler.blocking;
+import static org.mib.cochat.rest.ContextInjectionHandler.chained;
 import static org.mib.cochat.rest.ContextInjectionHandler.chainedBlocking;
+import static org.mib.cochat.rest.ContextInjectionHandler.dispatch;
+import static org.mib.cochat.rest.ContextInjectionHandler.receive;
 import static org.mib.common.ser.Serdes.fromJson;
 import static org.mib.common.ser.Serdes.toJsonText;
+import static org.mib.common.validator.Validator.validateIntPositive;
 import static org.mib.common.validator.Validator.validateObjectNotNull;
 import static org.mib.common.validator.Validator.validateStringNotBlank;
 
@@ -55,7 +65,16 @@ import static org.mib.common.validator.Validator.validateStringNotBlank;
 public class CochatAPIHandlerProvider implements HandlerProvider {
 
     static final String TOKEN_FIELD_NAME = "token";
+    private static final String FILE_NAME_FIELD_NAME = "name";
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+    private static final String THUMBNAIL_ETAG_SUFFIX = "-thumbnail";
     private static final String TIMESTAMP_PARAM_NAME = "_timestamp";
+    private static final String CURSOR_PARAM_NAME = RoomEventStreams.CURSOR_PARAM_NAME;
+    private static final String LIMIT_PARAM_NAME = "_limit";
+    private static final String WAIT_PARAM_NAME = "_wait";
+    private static final int MAX_WAIT_SECONDS = 60;
+    private static final int MAX_SYNC_LIMIT = 1000;
+    private static final HttpString CURSOR_HEADER = HttpString.tryFromString("X-Cochat-Cursor");
     private static final String DOWNLOAD_HEADER_PREFIX = "attachment; filename=";
     private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
     private static final HttpString CORS_HEADER = HttpString.tryFromString("Access-Control-Allow-Origin");
@@ -69,6 +88,10 @@ public class CochatAPIHandlerProvider implements HandlerProvider {
     private final MessageService messageService;
     private final ChatterService chatterService;
     private final FileService fileService;
+    private final ColdStorage coldStorage;
+    private final RoomEventStreams eventStreams;
+    private final FileSender fileSender;
+    private final AssetCache assetCache;
 
     public CochatAPIHandlerProvider() {
         ServiceFactory sf = ServiceFactory.getInstance();
@@ -76,6 +99,10 @@ public class CochatAPIHandlerProvider implements HandlerProvider {
         this.messageService = sf.getMessageService();
         this.roomService = sf.getRoomService();
         this.chatterService = sf.getChatterService();
+        this.coldStorage = sf.getColdStorage();
+        this.eventStreams = new RoomEventStreams(roomService);
+        this.fileSender = new FileSender();
+        this.assetCache = new AssetCache(ASSETS_DIR_PATH, ConfigProvider.getBoolean("assets_hot_reload"));
     }
 
     @Override
@@ -91,14 +118,17 @@ public class CochatAPIHandlerProvider implements HandlerProvider {
                 .delete("/api/rooms/{" + TOKEN_FIELD_NAME + "}", roomDeleteHandler())
                 .post("/api/rooms/{" + TOKEN_FIELD_NAME + "}/messages", messagePublishHandler())
                 .post("/api/rooms/{" + TOKEN_FIELD_NAME + "}/files", filePublishHandler())
+                .post("/api/rooms/{" + TOKEN_FIELD_NAME + "}/files/{" + FILE_NAME_FIELD_NAME + "}", fileStreamHandler())
                 .get("/api/rooms/{" + TOKEN_FIELD_NAME + "}/messages", messageRetrieveHandler())
+                .get("/api/rooms/{" + TOKEN_FIELD_NAME + "}/events", eventStreamHandler())
                 .delete("/api/messages/{" + TOKEN_FIELD_NAME + "}", messageDeleteHandler())
                 .get("/api/files/{" + TOKEN_FIELD_NAME + "}", fileRetrieveHandler())
+                .get("/api/files/{" + TOKEN_FIELD_NAME + "}/thumbnail", thumbnailRetrieveHandler())
                 .get("/api/health", new HealthGetHandler())
                 .get("/api/metrics", new PrometheusGetHandler())
-                .get("/", assetHandler(ASSETS_DIR_PATH + "/index.html"))
-                .get("/session", assetHandler(ASSETS_DIR_PATH + "/chatter.html"))
-                .get("/{" + TOKEN_FIELD_NAME + "}", assetHandler(ASSETS_DIR_PATH + "/room.html"))
+                .get("/", assetHandler("index.html"))
+                .get("/session", assetHandler("chatter.html"))
+                .get("/{" + TOKEN_FIELD_NAME + "}", assetHandler("room.html"))
                 .get("/assets/{" + TOKEN_FIELD_NAME + "}", assetHandler());
     }
 
@@ -121,7 +151,7 @@ public class CochatAPIHandlerProvider implements HandlerProvider {
     }
 
     private HttpHandler chatterRetrieveHandler() {
-        return blocking(exchange -> {
+        return exchange -> {
             Cookie chatterToken = exchange.getRequestCookies().get(TOKEN_FIELD_NAME);
             if (chatterToken != null && StringUtils.isNotBlank(chatterToken.getValue())) {
                 Chatter chatter = chatterService.getChatter(chatterToken.getValue());
@@ -131,35 +161,38 @@ public class CochatAPIHandlerProvider implements HandlerProvider {
                 }
             }
             sendJson(exchange, EMPTY_OBJECT);
-        });
+        };
     }
 
     private HttpHandler chatterCreateHandler() {
-        return blocking(exchange -> {
+        return exchange -> {
             Cookie chatterToken = exchange.getRequestCookies().get(TOKEN_FIELD_NAME);
-            Chatter chatter = null;
             if (chatterToken != null && StringUtils.isNotBlank(chatterToken.getValue())) {
-                chatter = chatterService.getChatter(chatterToken.getValue());
-            }
-            if (chatter == null) {
-                String name = fromJson(IOUtils.toByteArray(exchange.getInputStream()), CreationRequest.class).name;
-                chatter = chatterService.createChatter(name);
-                exchange.getResponseHeaders().add(Headers.SET_COOKIE, String.format(TOKEN_COOKIE_FORMAT, chatter.getToken()));
+                Chatter chatter = chatterService.getChatter(chatterToken.getValue());
+                if (chatter != null) {
+                    sendJson(exchange, chatter);
+                    return;
+                }
             }
-            sendJson(exchange, chatter);
-        });
+            // stored chatters go to the journal
+            receive(exchange, (ex, body) -> dispatch(ex, e -> {
+                Chatter chatter = chatterService.createChatter(fromJson(body, CreationRequest.class).name);
+                e.getResponseHeaders().add(Headers.SET_COOKIE, String.format(TOKEN_COOKIE_FORMAT, chatter.getToken()));
+                sendJson(e, chatter);
+            }));
+        };
     }
 
     private HttpHandler roomCreateHandler() {
-        return chainedBlocking(chatterService, exchange -> {
-            String name = fromJson(IOUtils.toByteArray(exchange.getInputStream()), CreationRequest.class).name;
-            Room room = roomService.createRoom(name);
-            sendJson(exchange, room);
-        });
+        return chained(chatterService, exchange -> receive(exchange, (ex, body) -> dispatch(ex, e -> {
+            CreationRequest request = fromJson(body, CreationRequest.class);
+            Room room = roomService.createRoom(request.name, request.retention);
+            sendJson(e, room);
+        })));
     }
 
     private HttpHandler roomRetrieveHandler() {
-        return chainedBlocking(chatterService, exchange -> {
+        return chained(chatterService, exchange -> {
             String token = exchange.getQueryParameters().get(TOKEN_FIELD_NAME).getFirst();
             Room room = roomService.getExistingRoom(token);
             sendJson(exchange, room);
@@ -176,46 +209,95 @@ public class CochatAPIHandlerProvider implements HandlerProvider {
     }
 
     private HttpHandler messagePublishHandler() {
-        return chainedBlocking(chatterService, exchange -> {
-            String roomToken = exchange.getQueryParameters().get(TOKEN_FIELD_NAME).getFirst();
-            String content = IOUtils.toString(exchange.getInputStream(), exchange.getRequestCharset());
+        return chained(chatterService, exchange -> receive(exchange, (ex, body) -> dispatch(ex, e -> {
+            String roomToken = e.getQueryParameters().get(TOKEN_FIELD_NAME).getFirst();
+            String content = new String(body, Charset.forName(e.getRequestCharset()));
             Message message = roomService.publishMessage(roomToken, content);
-            sendJson(exchange, message);
-        });
+            sendJson(e, message);
+        })));
     }
 
+    /**
+     * Takes the file field of a multipart form, parsed off the request stream into the file store like a raw body.
+     */
     private HttpHandler filePublishHandler() {
-        return chainedBlocking(chatterService, new EagerFormParsingHandler(exchange -> {
+        return chainedBlocking(chatterService, exchange -> {
             String roomToken = exchange.getQueryParameters().get(TOKEN_FIELD_NAME).getFirst();
-            FormData attachment = exchange.getAttachment(FormDataParser.FORM_DATA);
-            if (attachment == null) {
+            MultipartFileStream file;
+            try {
+                file = new MultipartFileStream(exchange, "file");
+            } catch (IllegalArgumentException e) {
                 throw new BadRequestException("no form received");
             }
-            FormData.FormValue fileValue = attachment.getFirst("file");
-            if (fileValue == null) {
+            if (!file.seek()) {
                 throw new BadRequestException("no file uploaded");
             }
-            if (!fileValue.isFile()) {
+            if (file.getFileName() == null) {
                 throw new BadRequestException("not a file");
             }
-            String mimeType = fileValue.getHeaders().getFirst(Headers.CONTENT_TYPE);
-            String filePath = fileValue.getPath().toAbsolutePath().toString();
-            Message message = roomService.publishMessage(roomToken, fileValue.getFileName(), new File(filePath), mimeType);
+            String mimeType = StringUtils.defaultIfBlank(file.getContentType(), DEFAULT_MIME_TYPE);
+            Message message = roomService.publishMessage(roomToken, file.getFileName(), file, mimeType);
             sendJson(exchange, message);
-        }));
+        });
     }
 
-    private HttpHandler messageRetrieveHandler() {
+    /**
+     * Takes the raw request body as the file content, written straight into the file store without a form-data
+     * temp file in between.
+     */
+    private HttpHandler fileStreamHandler() {
         return chainedBlocking(chatterService, exchange -> {
             String roomToken = exchange.getQueryParameters().get(TOKEN_FIELD_NAME).getFirst();
-            Deque<String> timestamps = exchange.getQueryParameters().get(TIMESTAMP_PARAM_NAME);
-            long timestamp = timestamps == null ? 0 : Long.parseLong(timestamps.getFirst());
+            String name = exchange.getQueryParameters().get(FILE_NAME_FIELD_NAME).getFirst();
+            if (StringUtils.isBlank(name) || StringUtils.containsAny(name, '/', '\\')) {
+                throw new BadRequestException("invalid file name " + name);
+            }
+            String mimeType = StringUtils.substringBefore(exchange.getRequestHeaders().getFirst(Headers.CONTENT_TYPE), ";");
+            mimeType = StringUtils.isBlank(mimeType) ? DEFAULT_MIME_TYPE : mimeType.trim();
+            Message message = roomService.publishMessage(roomToken, name, exchange.getInputStream(), mimeType);
+            sendJson(exchange, message);
+        });
+    }
+
+    private HttpHandler messageRetrieveHandler() {
+        return chained(chatterService, exchange -> {
+            String roomToken = exchange.getQueryParameters().get(TOKEN_FIELD_NAME).getFirst();
             Room room = roomService.getExistingRoom(roomToken);
-            List<Message> messages = room.getMessages().stream().filter(msg -> msg.getTimestamp() >= timestamp).collect(Collectors.toList());
-            sendJson(exchange, messages);
+            MessageSync sync;
+            int wait;
+            try {
+                sync = new MessageSync(room, getQueryParameter(exchange, CURSOR_PARAM_NAME),
+                        getQueryParameter(exchange, TIMESTAMP_PARAM_NAME), getQueryParameter(exchange, LIMIT_PARAM_NAME));
+                String waitSeconds = getQueryParameter(exchange, WAIT_PARAM_NAME);
+                wait = waitSeconds == null ? 0 : Math.min(Integer.parseInt(waitSeconds), MAX_WAIT_SECONDS);
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException("invalid message sync parameters: " + e.getMessage());
+            }
+            // answered from the timeline on the io thread, unless the cursor is behind it in the cold tier on disk
+            if (sync.readsCold()) {
+                dispatch(exchange, ex -> syncMessages(ex, sync, wait));
+                return;
+            }
+            syncMessages(exchange, sync, wait);
         });
     }
 
+    private void syncMessages(HttpServerExchange exchange, MessageSync sync, int wait) {
+        MessagePage page = sync.poll();
+        if (page.items.isEmpty() && wait > 0) {
+            new ParkedSync(exchange, sync).park(wait);
+            return;
+        }
+        sendMessages(exchange, sync, page);
+    }
+
+    private HttpHandler eventStreamHandler() {
+        return chained(chatterService, exchange -> {
+            String roomToken = exchange.getQueryParameters().get(TOKEN_FIELD_NAME).getFirst();
+            roomService.getExistingRoom(roomToken);
+        }, Handlers.serverSentEvents(eventStreams));
+    }
+
     private HttpHandler messageDeleteHandler() {
         return chainedBlocking(chatterService, exchange -> {
             String token = exchange.getQueryParameters().get(TOKEN_FIELD_NAME).getFirst();
@@ -236,21 +318,68 @@ public class CochatAPIHandlerProvider implements HandlerProvider {
             if (!(message instanceof Image)) {
                 exchange.getResponseHeaders().add(Headers.CONTENT_DISPOSITION, DOWNLOAD_HEADER_PREFIX + file.getName());
             }
-            sendFile(exchange, fileService.getFilePath(file));
+            // blobs carry no extension, so the type is told by the file name; content under a token never changes
+            sendFile(exchange, fileService.getFilePath(file), fileSender.contentType(file.getName()), file.getDigest(),
+                    FileSender.CACHE_IMMUTABLE);
+        });
+    }
+
+    /**
+     * Sends the thumbnail of an image, or the original with a revalidating cache policy while the thumbnail is not
+     * generated yet.
+     */
+    private HttpHandler thumbnailRetrieveHandler() {
+        return chainedBlocking(chatterService, exchange -> {
+            String token = exchange.getQueryParameters().get(TOKEN_FIELD_NAME).getFirst();
+            Message message = messageService.getExistingMessage(token);
+            if (!(message instanceof Image)) {
+                throw new BadRequestException("message " + token + " not image");
+            }
+            Image image = (Image) message;
+            String thumbnail = fileService.getThumbnailPath(image);
+            if (new File(thumbnail).isFile()) {
+                sendFile(exchange, thumbnail, FileSender.JPEG_CONTENT_TYPE,
+                        image.getDigest() == null ? null : image.getDigest() + THUMBNAIL_ETAG_SUFFIX, FileSender.CACHE_IMMUTABLE);
+                return;
+            }
+            fileService.requestThumbnail(image);
+            sendFile(exchange, fileService.getFilePath(image), fileSender.contentType(image.getName()), image.getDigest(),
+                    FileSender.CACHE_REVALIDATE);
         });
     }
 
-    private HttpHandler assetHandler(String resourcePath) {
-        validateStringNotBlank(resourcePath, "resource path");
-        return blocking(exchange -> sendFile(exchange, resourcePath));
+    private HttpHandler assetHandler(String name) {
+        validateStringNotBlank(name, "asset name");
+        return exchange -> {
+            exchange.getResponseHeaders().add(CORS_HEADER, ALL);
+            assetCache.send(exchange, name);
+        };
     }
 
     private HttpHandler assetHandler() {
-        return blocking(exchange -> {
-            String resourceName = exchange.getQueryParameters().get(TOKEN_FIELD_NAME).getFirst();
-            String path = ASSETS_DIR_PATH + File.separator + resourceName;
-            sendFile(exchange, path);
-        });
+        return exchange -> {
+            exchange.getResponseHeaders().add(CORS_HEADER, ALL);
+            assetCache.send(exchange, exchange.getQueryParameters().get(TOKEN_FIELD_NAME).getFirst());
+        };
+    }
+
+    private void sendMessages(HttpServerExchange exchange, MessageSync sync, MessagePage page) {
+        String cursor = page.items.isEmpty() ? sync.cursor : page.cursor;
+        if (cursor != null) {
+            exchange.getResponseHeaders().put(CURSOR_HEADER, cursor);
+        }
+        if (page.items.isEmpty() && sync.isConditional()) {
+            exchange.getResponseHeaders().add(CORS_HEADER, ALL);
+            exchange.setStatusCode(StatusCodes.NOT_MODIFIED);
+            exchange.endExchange();
+            return;
+        }
+        streamJson(exchange, page.items);
+    }
+
+    private static String getQueryParameter(HttpServerExchange exchange, String name) {
+        Deque<String> values = exchange.getQueryParameters().get(name);
+        return values == null || values.isEmpty() || StringUtils.isBlank(values.getFirst()) ? null : values.getFirst();
     }
 
     private void sendJson(HttpServerExchange exchange, Object object) {
@@ -258,25 +387,169 @@ public class CochatAPIHandlerProvider implements HandlerProvider {
         HeaderMap headers = exchange.getResponseHeaders();
         headers.add(CORS_HEADER, ALL);
         headers.add(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
+        if (object instanceof Information) {
+            exchange.getResponseSender().send(ByteBuffer.wrap(InformationJson.encode((Information) object)));
+            return;
+        }
         exchange.getResponseSender().send(toJsonText(object), StandardCharsets.UTF_8);
     }
 
-    private void sendFile(HttpServerExchange exchange, String path) throws IOException {
-        log.debug("sending file {} to {}...", path, exchange.getSourceAddress());
-        File file = new File(path);
-        exchange.setStatusCode(StatusCodes.OK);
+    /**
+     * Streams the items as a json array of their cached encodings straight into the response buffers, chunked, so
+     * the response is never held in full. Blocking writes happen on a worker thread.
+     */
+    private void streamJson(HttpServerExchange exchange, List<?> items) {
+        if (exchange.isInIoThread()) {
+            dispatch(exchange, ex -> streamJson(ex, items));
+            return;
+        }
         HeaderMap headers = exchange.getResponseHeaders();
         headers.add(CORS_HEADER, ALL);
-        headers.add(Headers.CONTENT_TYPE, Files.probeContentType(file.toPath()));
-        headers.add(Headers.CONTENT_LENGTH, file.length());
-        try (FileInputStream is = new FileInputStream(file)) {
-            exchange.getResponseSender().transferFrom(is.getChannel(), IoCallback.END_EXCHANGE);
+        headers.add(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
+        if (!exchange.isBlocking()) exchange.startBlocking();
+        try (OutputStream out = exchange.getOutputStream()) {
+            InformationJson.writeArray(out, items);
+        } catch (IOException e) {
+            log.error("failed to stream {} items for request {}", items.size(), exchange.getRequestURI(), e);
+            IoUtils.safeClose(exchange.getConnection());
+            return;
+        }
+        exchange.endExchange();
+    }
+
+    private void sendFile(HttpServerExchange exchange, String path, String contentType, String etag, String cacheControl) throws IOException {
+        log.debug("sending file {} to {}...", path, exchange.getSourceAddress());
+        exchange.getResponseHeaders().add(CORS_HEADER, ALL);
+        fileSender.send(exchange, new File(path), contentType, etag, cacheControl);
+    }
+
+    /**
+     * Seeks the cold tier first and continues into the room timeline, so a sync from an old cursor pages through
+     * evicted messages transparently. Pages are capped, clients follow the returned cursor for more.
+     */
+    private class MessageSync {
+
+        private final Room room;
+        private final String cursor;
+        private final Long timestamp;
+        private final int limit;
+
+        MessageSync(final Room room, final String cursor, final String timestamp, final String limit) {
+            if (cursor != null) MessageTimeline.parse(cursor);
+            this.room = room;
+            this.cursor = cursor;
+            this.timestamp = timestamp == null ? null : Long.parseLong(timestamp);
+            this.limit = limit == null ? MAX_SYNC_LIMIT : Math.min(Integer.parseInt(limit), MAX_SYNC_LIMIT);
+            validateIntPositive(this.limit, "limit");
+        }
+
+        /**
+         * @return whether polling reads the cold tier on disk, and so has to happen off the io thread
+         */
+        boolean readsCold() {
+            return coldStorage != null && coldStorage.hasAfter(room.getToken(), bound());
+        }
+
+        MessagePage poll() {
+            String bound = bound();
+            MessagePage page = new MessagePage();
+            if (coldStorage != null) {
+                for (ColdStorage.ColdMessage cold : coldStorage.after(room.getToken(), bound, limit)) {
+                    page.items.add(cold.getMessage());
+                    page.cursor = cold.getCursor();
+                }
+            }
+            int remaining = limit - page.items.size();
+            if (remaining <= 0) return page;
+            String from = page.cursor != null ? page.cursor : bound;
+            List<Message> hot = from != null ? room.getMessages().after(from, remaining) : room.getMessages().since(0, remaining);
+            if (!hot.isEmpty()) {
+                page.items.addAll(hot);
+                page.cursor = MessageTimeline.cursor(hot.get(hot.size() - 1));
+            }
+            return page;
+        }
+
+        boolean isConditional() {
+            return cursor != null || timestamp != null;
+        }
+
+        private String bound() {
+            return cursor != null ? cursor : timestamp != null ? MessageTimeline.cursorAt(timestamp) : null;
+        }
+    }
+
+    private static class MessagePage {
+
+        private final List<Object> items = Lists.newArrayList();
+        private String cursor;
+    }
+
+    /**
+     * A message sync that found nothing new, parked without holding any thread until the room publishes a message
+     * or the wait elapses. Responses are written from the exchange's IO thread, unless evictions moved messages past
+     * the sync's bound to the cold tier in the meantime.
+     */
+    private class ParkedSync implements RoomListener {
+
+        private final HttpServerExchange exchange;
+        private final MessageSync sync;
+        private final AtomicBoolean resumed;
+        private volatile XnioExecutor.Key timeoutKey;
+
+        ParkedSync(final HttpServerExchange exchange, final MessageSync sync) {
+            this.exchange = exchange;
+            this.sync = sync;
+            this.resumed = new AtomicBoolean(false);
+        }
+
+        void park(int waitSeconds) {
+            String roomToken = sync.room.getToken();
+            exchange.addExchangeCompleteListener((ex, next) -> {
+                roomService.unsubscribe(roomToken, this);
+                next.proceed();
+            });
+            exchange.dispatch(SameThreadExecutor.INSTANCE, () -> {
+                roomService.subscribe(roomToken, this);
+                timeoutKey = exchange.getIoThread().executeAfter(this::resume, waitSeconds, TimeUnit.SECONDS);
+                // a message may have been published between the first poll and the subscription
+                if (sync.readsCold() || !sync.poll().items.isEmpty()) resume();
+            });
+        }
+
+        @Override
+        public void onPublished(Room room, Information info) {
+            if (info instanceof Message) {
+                exchange.getIoThread().execute(this::resume);
+            }
+        }
+
+        private void resume() {
+            if (!resumed.compareAndSet(false, true)) return;
+            XnioExecutor.Key key = timeoutKey;
+            if (key != null) key.remove();
+            if (sync.readsCold()) {
+                exchange.dispatch(this::respond);
+                return;
+            }
+            respond();
+        }
+
+        private void respond() {
+            try {
+                sendMessages(exchange, sync, sync.poll());
+            } catch (Exception e) {
+                log.error("failed to resume parked sync for request {}", exchange.getRequestURI(), e);
+                exchange.setStatusCode(StatusCodes.INTERNAL_SERVER_ERROR);
+                exchange.endExchange();
+            }
         }
     }
 
     @Data
     private static class CreationRequest {
         private String name;
+        private RetentionPolicy retention;
     }
 
     @Data
@@ -50,8 +50,21 @@ public class CochatWebSocketHandlerProvider implements HandlerProvider {
                 String token = extractToken(channel.getUrl());
                 Chatter chatter = chatterService.getChatter(channel);
                 log.debug("received message for room {} from web socket chatter {}", token, chatter.getName());
-                CochatScope.setChatter(chatter);
-                roomService.publishMessage(token, message.getData());
+                String text = message.getData();
+                // storing may wait on the journal and the room's dispatcher shard, so it's kept off the io thread;
+                // receives are suspended meanwhile so messages of a channel are published in the order sent
+                channel.suspendReceives();
+                channel.getWorker().execute(() -> {
+                    try {
+                        CochatScope.setChatter(chatter);
+                        roomService.publishMessage(token, text);
+                    } catch (Exception e) {
+                        log.error("failed to publish web socket message of chatter {} to room {}", chatter.getName(), token, e);
+                    } finally {
+                        CochatScope.clear();
+                        channel.resumeReceives();
+                    }
+                });
             }
         };
     }
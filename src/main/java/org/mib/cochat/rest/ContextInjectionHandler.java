@@ -5,6 +5,7 @@ import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.server.handlers.BlockingHandler;
 import io.undertow.server.handlers.Cookie;
+import io.undertow.util.AttachmentKey;
 import io.undertow.util.StatusCodes;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
@@ -15,6 +16,7 @@ import org.mib.rest.exception.BadRequestException;
 import org.mib.rest.exception.ForbiddenException;
 import org.mib.rest.exception.ResourceNotFoundException;
 import org.mib.rest.exception.UnauthorizedException;
+import org.xnio.IoUtils;
 
 import java.util.Arrays;
 import java.util.Collection;
@@ -27,6 +29,8 @@ import static org.mib.common.validator.Validator.validateObjectNotNull;
 @Slf4j
 class ContextInjectionHandler implements HttpHandler {
 
+    private static final AttachmentKey<Chatter> CHATTER = AttachmentKey.create(Chatter.class);
+
     private final ChatterService chatterService;
     private final List<HttpHandler> nextHandlers;
 
@@ -49,7 +53,7 @@ class ContextInjectionHandler implements HttpHandler {
 
     @Override
     public void handleRequest(HttpServerExchange exchange) {
-        try {
+        handle(exchange, ex -> {
             if (nextHandlers.isEmpty()) {
                 log.warn("no next handler specified");
                 throw new IllegalStateException("next handler not specified");
@@ -60,10 +64,22 @@ class ContextInjectionHandler implements HttpHandler {
                 chatter = chatterService.getChatter(chatterToken.getValue());
             }
             if (chatter == null) throw new UnauthorizedException("empty or invalid session");
+            exchange.putAttachment(CHATTER, chatter);
             CochatScope.setChatter(chatter);
             for (HttpHandler handler : nextHandlers) {
                 handler.handleRequest(exchange);
             }
+        });
+    }
+
+    /**
+     * Runs the handler in the chatter context attached to the exchange, if any, mapping its exceptions to statuses.
+     */
+    private static void handle(HttpServerExchange exchange, HttpHandler handler) {
+        try {
+            Chatter chatter = exchange.getAttachment(CHATTER);
+            if (chatter != null) CochatScope.setChatter(chatter);
+            handler.handleRequest(exchange);
         } catch (BadRequestException e) {
             log.error("bad input parameters for request {}", exchange.getRequestURI(), e);
             exchange.setStatusCode(StatusCodes.BAD_REQUEST);
@@ -89,6 +105,33 @@ class ContextInjectionHandler implements HttpHandler {
         }
     }
 
+    /**
+     * Continues the request on a worker thread, for work that blocks on disk. The exchange ends when the handler
+     * returns, unless it dispatches again.
+     */
+    static void dispatch(HttpServerExchange exchange, HttpHandler handler) {
+        validateObjectNotNull(handler, "handler");
+        exchange.dispatch(ex -> handle(ex, handler));
+    }
+
+    /**
+     * Reads the full request body without blocking, then continues the request with it on the io thread.
+     */
+    static void receive(HttpServerExchange exchange, BodyHandler handler) {
+        validateObjectNotNull(handler, "body handler");
+        exchange.getRequestReceiver().receiveFullBytes(
+                (ex, body) -> handle(ex, e -> handler.handle(e, body)),
+                (ex, e) -> {
+                    log.error("failed to receive body of request {}", ex.getRequestURI(), e);
+                    IoUtils.safeClose(ex.getConnection());
+                });
+    }
+
+    /**
+     * Chains the handlers behind authentication on the io thread. They must only do in-memory work there and
+     * {@link #dispatch(HttpServerExchange, HttpHandler)} whatever may touch the disk, like message syncs reaching into
+     * the cold tier; routes that block throughout use {@link #chainedBlocking(ChatterService, HttpHandler...)}.
+     */
     static HttpHandler chained(final ChatterService chatterService, final HttpHandler... handlers) {
         return new ContextInjectionHandler(chatterService, handlers);
     }
@@ -97,11 +140,6 @@ class ContextInjectionHandler implements HttpHandler {
         return new ContextInjectionHandler(chatterService, handlers);
     }
 
-    static HttpHandler blocking(final HttpHandler handler) {
-        validateObjectNotNull(handler, "handler");
-        return new BlockingHandler(handler);
-    }
-
     static HttpHandler chainedBlocking(final ChatterService chatterService, final HttpHandler... handlers) {
         return new BlockingHandler(chained(chatterService, handlers));
     }
@@ -109,4 +147,10 @@ class ContextInjectionHandler implements HttpHandler {
     static HttpHandler chainedBlocking(final ChatterService chatterService, final Collection<HttpHandler> handlers) {
         return new BlockingHandler(chained(chatterService, handlers));
     }
+
+    @FunctionalInterface
+    interface BodyHandler {
+
+        void handle(HttpServerExchange exchange, byte[] body) throws Exception;
+    }
 }
@@ -0,0 +1,122 @@
+package org.mib.cochat.rest;
+
+import com.google.common.collect.Maps;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.ByteRange;
+import io.undertow.util.DateUtils;
+import io.undertow.util.ETag;
+import io.undertow.util.ETagUtils;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.xnio.channels.Channels;
+import org.xnio.channels.StreamSinkChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Map;
+
+import static org.mib.common.validator.Validator.validateObjectNotNull;
+
+/**
+ * Sends files on blocking exchanges with validators, conditional GET and single byte range support. The body, whole
+ * or ranged, goes straight from the file channel to the connection with {@link FileChannel#transferTo}.
+ */
+@Slf4j
+class FileSender {
+
+    static final String CACHE_IMMUTABLE = "private, max-age=31536000, immutable";
+    static final String CACHE_REVALIDATE = "no-cache";
+    static final String JPEG_CONTENT_TYPE = "image/jpeg";
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    private static final String BYTES = "bytes";
+
+    // content types by lower cased file extension
+    private final Map<String, String> contentTypes;
+
+    FileSender() {
+        this.contentTypes = Maps.newConcurrentMap();
+    }
+
+    /**
+     * @return content type told by the extension of the file name, probed once per extension
+     */
+    String contentType(String fileName) {
+        String extension = StringUtils.lowerCase(StringUtils.substringAfterLast(fileName, "."));
+        return contentTypes.computeIfAbsent(extension, ext -> {
+            try {
+                String probed = Files.probeContentType(Paths.get("file." + ext));
+                return probed == null ? DEFAULT_CONTENT_TYPE : probed;
+            } catch (Exception e) {
+                log.warn("failed to probe content type for extension {}", ext, e);
+                return DEFAULT_CONTENT_TYPE;
+            }
+        });
+    }
+
+    /**
+     * @param etag strong entity tag of the content, or null to derive one from file size and modification time
+     */
+    void send(HttpServerExchange exchange, File file, String contentType, String etag, String cacheControl) throws IOException {
+        validateObjectNotNull(file, "file");
+        if (!file.isFile()) {
+            log.warn("file {} not found for {}", file, exchange.getRequestURI());
+            exchange.setStatusCode(StatusCodes.NOT_FOUND);
+            exchange.endExchange();
+            return;
+        }
+        long length = file.length();
+        // http dates have second precision, so validators sent back compare equal to the truncated time
+        Date lastModified = new Date(file.lastModified() / 1000 * 1000);
+        if (etag == null) {
+            etag = Long.toHexString(file.lastModified()) + '-' + Long.toHexString(length);
+        }
+        String quotedEtag = new ETag(false, etag).toString();
+        HeaderMap headers = exchange.getResponseHeaders();
+        headers.put(Headers.ETAG, quotedEtag);
+        headers.put(Headers.LAST_MODIFIED, DateUtils.toDateString(lastModified));
+        headers.put(Headers.CACHE_CONTROL, cacheControl);
+        headers.put(Headers.ACCEPT_RANGES, BYTES);
+        if (!ETagUtils.handleIfNoneMatch(exchange, new ETag(false, etag), false) ||
+                (!exchange.getRequestHeaders().contains(Headers.IF_NONE_MATCH) && !DateUtils.handleIfModifiedSince(exchange, lastModified))) {
+            exchange.setStatusCode(StatusCodes.NOT_MODIFIED);
+            exchange.endExchange();
+            return;
+        }
+        long start = 0, count = length;
+        ByteRange range = ByteRange.parse(exchange.getRequestHeaders().getFirst(Headers.RANGE));
+        ByteRange.RangeResponseResult result = range == null ? null : range.getResponseResult(length,
+                exchange.getRequestHeaders().getFirst(Headers.IF_RANGE), lastModified, quotedEtag);
+        if (result != null) {
+            headers.put(Headers.CONTENT_RANGE, result.getContentRange());
+            if (result.getStatusCode() == StatusCodes.REQUEST_RANGE_NOT_SATISFIABLE) {
+                exchange.setStatusCode(StatusCodes.REQUEST_RANGE_NOT_SATISFIABLE);
+                exchange.endExchange();
+                return;
+            }
+            start = result.getStart();
+            count = result.getContentLength();
+            exchange.setStatusCode(StatusCodes.PARTIAL_CONTENT);
+        } else {
+            exchange.setStatusCode(StatusCodes.OK);
+        }
+        headers.put(Headers.CONTENT_TYPE, contentType == null ? DEFAULT_CONTENT_TYPE : contentType);
+        headers.put(Headers.CONTENT_LENGTH, count);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            StreamSinkChannel sink = exchange.getResponseChannel();
+            // with the headers out the response conduit hands the transfer down to the socket instead of buffering it
+            Channels.flushBlocking(sink);
+            Channels.transferBlocking(sink, channel, start, count);
+            sink.shutdownWrites();
+            Channels.flushBlocking(sink);
+        }
+        exchange.endExchange();
+    }
+}
@@ -0,0 +1,120 @@
+package org.mib.cochat.rest;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import io.undertow.util.MultipartParser;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.mib.common.validator.Validator.validateStringNotBlank;
+
+/**
+ * Content of a file field of a multipart form, parsed straight off the blocking request stream as it's read. The
+ * file is never spooled to a temp file by a form parser, so it can be hashed while being written into the store.
+ */
+class MultipartFileStream extends InputStream implements MultipartParser.PartHandler {
+
+    private static final int READ_BUFFER_BYTES = 8 << 10;
+
+    private final InputStream body;
+    private final String field;
+    private final MultipartParser.ParseState state;
+    private final byte[] input;
+    // content of the file field parsed but not read yet, in read mode
+    private ByteBuffer pending;
+    private boolean inFile;
+    private boolean fileStarted;
+    private boolean fileEnded;
+    @Getter private String fileName;
+    @Getter private String contentType;
+
+    MultipartFileStream(final HttpServerExchange exchange, final String field) {
+        validateStringNotBlank(field, "form field");
+        String boundary = Headers.extractQuotedValueFromHeader(exchange.getRequestHeaders().getFirst(Headers.CONTENT_TYPE), "boundary");
+        if (boundary == null) throw new IllegalArgumentException("no multipart boundary");
+        this.body = exchange.getInputStream();
+        this.field = field;
+        this.state = MultipartParser.beginParse(exchange.getConnection().getByteBufferPool(), this,
+                boundary.getBytes(StandardCharsets.US_ASCII), exchange.getRequestCharset());
+        this.input = new byte[READ_BUFFER_BYTES];
+        this.pending = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        this.pending.flip();
+    }
+
+    /**
+     * Parses the form up to the content of the field, skipping the fields before it.
+     *
+     * @return whether the form has the field
+     */
+    boolean seek() throws IOException {
+        while (!fileStarted) {
+            if (!parse()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (!pending.hasRemaining()) {
+            if (fileEnded || !fileStarted) return -1;
+            if (!parse()) throw new IOException("multipart form completed within field " + field);
+        }
+        int n = Math.min(len, pending.remaining());
+        pending.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public void beginPart(HeaderMap headers) {
+        String disposition = headers.getFirst(Headers.CONTENT_DISPOSITION);
+        if (fileStarted || disposition == null || !field.equals(Headers.extractQuotedValueFromHeader(disposition, "name"))) return;
+        fileName = Headers.extractQuotedValueFromHeaderWithEncoding(disposition, "filename");
+        contentType = headers.getFirst(Headers.CONTENT_TYPE);
+        fileStarted = inFile = true;
+    }
+
+    @Override
+    public void data(ByteBuffer buffer) {
+        if (!inFile) return;
+        if (pending.capacity() - pending.remaining() < buffer.remaining()) {
+            ByteBuffer grown = ByteBuffer.allocate(pending.remaining() + buffer.remaining());
+            grown.put(pending);
+            pending = grown;
+        } else {
+            pending.compact();
+        }
+        // parser buffers are pooled, so the content is copied out before returning
+        pending.put(buffer);
+        pending.flip();
+    }
+
+    @Override
+    public void endPart() {
+        if (!inFile) return;
+        inFile = false;
+        fileEnded = true;
+    }
+
+    /**
+     * @return whether more of the form was parsed, false once it's complete
+     */
+    private boolean parse() throws IOException {
+        if (state.isComplete()) return false;
+        int n = body.read(input);
+        if (n < 0) throw new IOException("request body ended before the multipart form completed");
+        state.parse(ByteBuffer.wrap(input, 0, n));
+        return true;
+    }
+}
@@ -0,0 +1,227 @@
+package org.mib.cochat.rest;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import io.undertow.server.handlers.sse.ServerSentEventConnection;
+import io.undertow.server.handlers.sse.ServerSentEventConnectionCallback;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.mib.cochat.message.Information;
+import org.mib.cochat.message.InformationJson;
+import org.mib.cochat.message.Message;
+import org.mib.cochat.room.MessageTimeline;
+import org.mib.cochat.room.Room;
+import org.mib.cochat.service.RoomListener;
+import org.mib.cochat.service.RoomService;
+import org.xnio.IoUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.mib.cochat.rest.CochatAPIHandlerProvider.TOKEN_FIELD_NAME;
+import static org.mib.common.validator.Validator.validateObjectNotNull;
+
+/**
+ * Server-sent event streams of room information. Each room with open streams has one hub subscribed to the room
+ * which encodes every published info once and queues it on all streams; a stream first replays the room timeline
+ * after its {@code Last-Event-ID} (or {@code _cursor} query parameter), or all of it without one, and buffers live
+ * events until the replay is done, so nothing is lost or duplicated in between. The replay goes a page at a time,
+ * the next page read once the previous one is written out. Streams of a deleted room are closed.
+ */
+@Slf4j
+class RoomEventStreams implements ServerSentEventConnectionCallback {
+
+    static final String CURSOR_PARAM_NAME = "_cursor";
+    private static final long KEEP_ALIVE_MILLIS = 15000;
+    private static final int REPLAY_PAGE_SIZE = 128;
+
+    private final RoomService roomService;
+    private final Map<String, Hub> hubs;
+
+    RoomEventStreams(final RoomService roomService) {
+        validateObjectNotNull(roomService, "room service");
+        this.roomService = roomService;
+        this.hubs = Maps.newConcurrentMap();
+    }
+
+    @Override
+    public void connected(ServerSentEventConnection connection, String lastEventId) {
+        String roomToken = connection.getQueryParameters().get(TOKEN_FIELD_NAME).getFirst();
+        Room room = roomService.getRoom(roomToken);
+        if (room == null) {
+            log.warn("room {} gone before event stream {} connected", roomToken, connection.getRequestURI());
+            IoUtils.safeClose(connection);
+            return;
+        }
+        Deque<String> cursors = connection.getQueryParameters().get(CURSOR_PARAM_NAME);
+        String cursor = StringUtils.isNotBlank(lastEventId) ? lastEventId :
+                cursors == null || StringUtils.isBlank(cursors.peekFirst()) ? null : cursors.peekFirst();
+        log.debug("event stream connected to room {} from cursor {}", roomToken, cursor);
+
+        if (cursor != null) {
+            try {
+                MessageTimeline.parse(cursor);
+            } catch (IllegalArgumentException e) {
+                log.error("invalid resume cursor {} for event stream of room {}", cursor, roomToken, e);
+                IoUtils.safeClose(connection);
+                return;
+            }
+        }
+
+        Stream stream = new Stream(connection, room.getMessages());
+        connection.setKeepAliveTime(KEEP_ALIVE_MILLIS);
+        connection.addCloseTask(c -> leave(roomToken, stream));
+        join(roomToken, stream);
+        if (roomService.getRoom(roomToken) == null) {
+            // deleted while joining, after its hub was closed
+            IoUtils.safeClose(connection);
+            return;
+        }
+        stream.replay(cursor);
+    }
+
+    private void join(String roomToken, Stream stream) {
+        hubs.compute(roomToken, (t, hub) -> {
+            if (hub == null) {
+                hub = new Hub();
+                roomService.subscribe(t, hub);
+            }
+            hub.streams.add(stream);
+            return hub;
+        });
+    }
+
+    private void leave(String roomToken, Stream stream) {
+        hubs.computeIfPresent(roomToken, (t, hub) -> {
+            hub.streams.remove(stream);
+            if (!hub.streams.isEmpty()) return hub;
+            roomService.unsubscribe(t, hub);
+            return null;
+        });
+    }
+
+    private static class Hub implements RoomListener {
+
+        private final Set<Stream> streams = Sets.newConcurrentHashSet();
+
+        @Override
+        public void onPublished(Room room, Information info) {
+            Event event = Event.of(info);
+            streams.forEach(stream -> stream.push(event));
+        }
+
+        @Override
+        public void onDeleted(Room room) {
+            log.info("closing {} event streams of deleted room {}", streams.size(), room.getToken());
+            // close tasks leave the hub, which drops it with the last stream
+            streams.forEach(stream -> IoUtils.safeClose(stream.connection));
+        }
+    }
+
+    private static class Stream {
+
+        private final ServerSentEventConnection connection;
+        private final MessageTimeline timeline;
+        private List<Event> pending;
+        private volatile String replayedCursor;
+
+        Stream(final ServerSentEventConnection connection, final MessageTimeline timeline) {
+            this.connection = connection;
+            this.timeline = timeline;
+            this.pending = Lists.newArrayList();
+        }
+
+        synchronized void push(Event event) {
+            if (pending != null) {
+                pending.add(event);
+            } else {
+                send(event);
+            }
+        }
+
+        /**
+         * Sends the next page of the timeline after the cursor, continuing with the page after it once the last
+         * event of this one is written.
+         */
+        void replay(String cursor) {
+            if (cursor != null) replayedCursor = cursor;
+            List<Message> page = cursor == null ? timeline.since(0, REPLAY_PAGE_SIZE) : timeline.after(cursor, REPLAY_PAGE_SIZE);
+            if (page.isEmpty() || !connection.isOpen()) {
+                finishReplay();
+                return;
+            }
+            for (int i = 0; i < page.size(); i++) {
+                Event event = Event.of(page.get(i));
+                replayedCursor = event.id;
+                if (i < page.size() - 1) {
+                    send(event);
+                    continue;
+                }
+                connection.send(event.data, null, event.id, new ServerSentEventConnection.EventCallback() {
+                    @Override
+                    public void done(ServerSentEventConnection connection, String data, String event, String id) {
+                        if (page.size() < REPLAY_PAGE_SIZE) {
+                            finishReplay();
+                        } else {
+                            replay(id);
+                        }
+                    }
+
+                    @Override
+                    public void failed(ServerSentEventConnection connection, String data, String event, String id, IOException e) {
+                        log.debug("event stream {} failed during replay", connection.getRequestURI(), e);
+                        IoUtils.safeClose(connection);
+                    }
+                });
+            }
+        }
+
+        private void finishReplay() {
+            synchronized (this) {
+                for (Event event : pending) {
+                    // live events already covered by the replay were published before it started
+                    if (event.message == null || replayedCursor == null ||
+                            !MessageTimeline.isCovered(event.message, replayedCursor)) {
+                        send(event);
+                    }
+                }
+                pending = null;
+            }
+        }
+
+        private void send(Event event) {
+            if (!connection.isOpen()) return;
+            connection.send(event.data, null, event.id, null);
+        }
+    }
+
+    private static class Event {
+
+        private final Message message;
+        private final String id;
+        private final String data;
+
+        private Event(final Message message, final String id, final String data) {
+            this.message = message;
+            this.id = id;
+            this.data = data;
+        }
+
+        static Event of(Information info) {
+            if (info instanceof Message) {
+                Message message = (Message) info;
+                return new Event(message, MessageTimeline.cursor(message), json(message));
+            }
+            return new Event(null, null, json(info));
+        }
+
+        private static String json(Information info) {
+            return new String(InformationJson.encode(info), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package org.mib.cochat.room;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.mib.cochat.message.Message;
+import org.mib.cochat.message.RawFile;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static org.mib.common.ser.Serdes.fromJson;
+import static org.mib.common.ser.Serdes.toJsonText;
+import static org.mib.common.validator.Validator.validateIntPositive;
+import static org.mib.common.validator.Validator.validateObjectNotNull;
+import static org.mib.common.validator.Validator.validateStringNotBlank;
+
+/**
+ * On-disk tier for messages evicted from room timelines. Each room gets an append-only file of
+ * {@code <cursor>\t<json>} lines in eviction (i.e. timeline) order. File messages lose their blob on eviction, so their
+ * cold copies are marked expired. Files are indexed at startup: every few lines the offset of the line is kept by
+ * cursor, so reads seek close to their cursor instead of scanning, and syncs positioned past the
+ * newest cold cursor never touch the disk. Reads only go up to the length committed by the last append, so they
+ * never see a half written line and don't wait for appends.
+ */
+@Slf4j
+public class ColdStorage {
+
+    private static final String FILE_SUFFIX = ".cold";
+    private static final int INDEX_INTERVAL = 64;
+    private static final String EXPIRED_FIELD_NAME = "expired";
+
+    private final String directory;
+    private final ConcurrentMap<String, ColdFile> files;
+
+    public ColdStorage(final String directory) {
+        validateStringNotBlank(directory, "cold storage directory");
+        File dir = new File(directory);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException("unable to create cold storage directory " + dir.getAbsolutePath());
+        }
+        this.directory = directory;
+        this.files = Maps.newConcurrentMap();
+        File[] existing = dir.listFiles((d, name) -> name.endsWith(FILE_SUFFIX));
+        if (existing == null) return;
+        for (File file : existing) {
+            String roomToken = StringUtils.removeEnd(file.getName(), FILE_SUFFIX);
+            ColdFile cold = new ColdFile(file);
+            cold.index();
+            files.put(roomToken, cold);
+        }
+        log.info("indexed {} cold storage files under {}", files.size(), dir.getAbsolutePath());
+    }
+
+    /**
+     * Appends the messages of the room, which must come after any appended before.
+     *
+     * @return whether the messages made it to the cold tier; false if the room was deleted in the meantime
+     */
+    public boolean append(String roomToken, List<Message> messages) {
+        validateStringNotBlank(roomToken, "room token");
+        validateObjectNotNull(messages, "messages");
+        if (messages.isEmpty()) return true;
+        ColdFile cold = files.computeIfAbsent(roomToken, token -> new ColdFile(file(token)));
+        return cold.append(messages);
+    }
+
+    /**
+     * @return whether the room has cold messages positioned strictly after the given cursor, or any at all if the
+     * cursor is null; answered from memory
+     */
+    public boolean hasAfter(String roomToken, String cursor) {
+        validateStringNotBlank(roomToken, "room token");
+        ColdFile cold = files.get(roomToken);
+        if (cold == null || cold.newest == 0) return false;
+        return cursor == null || MessageTimeline.parse(cursor) < cold.newest;
+    }
+
+    /**
+     * @return at most limit cold messages of the room positioned strictly after the given cursor, or from the very
+     * beginning if the cursor is null
+     */
+    public List<ColdMessage> after(String roomToken, String cursor, int limit) {
+        validateStringNotBlank(roomToken, "room token");
+        validateIntPositive(limit, "limit");
+        long after = cursor == null ? 0 : MessageTimeline.parse(cursor);
+        ColdFile cold = files.get(roomToken);
+        if (cold == null || cold.newest <= after) return Collections.emptyList();
+        return cold.read(after, limit);
+    }
+
+    /**
+     * Deletes the cold messages of the room.
+     */
+    public void delete(String roomToken) {
+        validateStringNotBlank(roomToken, "room token");
+        ColdFile cold = files.remove(roomToken);
+        if (cold != null) cold.delete();
+    }
+
+    private File file(String roomToken) {
+        if (!StringUtils.isAlphanumeric(roomToken)) throw new IllegalArgumentException("invalid room token " + roomToken);
+        return new File(directory, roomToken + FILE_SUFFIX);
+    }
+
+    /**
+     * @return sequence of the line, or 0 for lines that can't be positioned, like the ones written before sequences
+     */
+    private static long sequence(String line) {
+        int separatorIndex = line.indexOf('\t');
+        if (separatorIndex <= 0) return 0;
+        try {
+            return MessageTimeline.parse(line.substring(0, separatorIndex));
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the json field of a positioned line
+     */
+    private static String json(String line) {
+        return line.substring(line.indexOf('\t') + 1);
+    }
+
+    /**
+     * @return json of the message, flagged expired for files whose blob goes along with the eviction
+     */
+    @SuppressWarnings("unchecked")
+    private static String json(Message message) {
+        if (!(message instanceof RawFile)) return toJsonText(message);
+        Map<String, Object> json = fromJson(toJsonText(message).getBytes(StandardCharsets.UTF_8), Map.class);
+        json.put(EXPIRED_FIELD_NAME, true);
+        return toJsonText(json);
+    }
+
+    private static class ColdFile {
+
+        private final File file;
+        // sequence of every INDEX_INTERVAL-th line to its byte offset
+        private final NavigableMap<Long, Long> offsets;
+        private volatile long length;
+        private volatile long newest;
+        private int lines;
+        private boolean deleted;
+
+        ColdFile(final File file) {
+            this.file = file;
+            this.offsets = new ConcurrentSkipListMap<>();
+        }
+
+        synchronized void index() {
+            long offset = 0, size = file.length();
+            try (FileInputStream in = new FileInputStream(file)) {
+                BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = br.readLine()) != null) {
+                    long next = offset + line.getBytes(StandardCharsets.UTF_8).length + 1;
+                    // a line cut short by a crash is left out and overwritten by the next append
+                    if (next > size) break;
+                    long sequence = sequence(line);
+                    if (sequence > 0) {
+                        if (lines++ % INDEX_INTERVAL == 0) offsets.put(sequence, offset);
+                        newest = Math.max(newest, sequence);
+                    }
+                    offset = next;
+                }
+            } catch (IOException e) {
+                log.error("failed to index cold storage {}", file.getAbsolutePath(), e);
+                throw new RuntimeException(e);
+            }
+            length = offset;
+        }
+
+        synchronized boolean append(List<Message> messages) {
+            if (deleted) return false;
+            Map<Long, Long> indexed = Maps.newHashMap();
+            long offset = length, latest = newest;
+            try (FileOutputStream fos = new FileOutputStream(file, true)) {
+                fos.getChannel().truncate(offset);
+                OutputStream out = new BufferedOutputStream(fos);
+                for (Message message : messages) {
+                    long sequence = message.getSequence();
+                    if (sequence <= latest) {
+                        log.warn("message {} appended out of order to cold storage {}", message.getToken(), file.getName());
+                    }
+                    byte[] line = (MessageTimeline.cursor(message) + '\t' + json(message) + '\n')
+                            .getBytes(StandardCharsets.UTF_8);
+                    out.write(line);
+                    if (lines++ % INDEX_INTERVAL == 0) indexed.put(sequence, offset);
+                    offset += line.length;
+                    latest = Math.max(latest, sequence);
+                }
+                out.flush();
+            } catch (IOException e) {
+                log.error("failed to append {} messages to cold storage {}", messages.size(), file.getAbsolutePath(), e);
+                throw new RuntimeException(e);
+            }
+            // published only once the lines are written, so readers never reach past them
+            offsets.putAll(indexed);
+            length = offset;
+            newest = latest;
+            return true;
+        }
+
+        List<ColdMessage> read(long after, int limit) {
+            Map.Entry<Long, Long> start = offsets.floorEntry(after);
+            long offset = start == null ? 0 : start.getValue(), end = length;
+            List<ColdMessage> result = Lists.newArrayList();
+            try (FileInputStream in = new FileInputStream(file)) {
+                in.getChannel().position(offset);
+                BufferedReader br = new BufferedReader(new InputStreamReader(new BoundedInputStream(in, end - offset), StandardCharsets.UTF_8));
+                String line;
+                while (result.size() < limit && (line = br.readLine()) != null) {
+                    long sequence = sequence(line);
+                    if (sequence <= after) continue;
+                    result.add(new ColdMessage(Long.toString(sequence), fromJson(json(line).getBytes(StandardCharsets.UTF_8), Map.class)));
+                }
+            } catch (IOException e) {
+                log.error("failed to read cold storage {}", file.getAbsolutePath(), e);
+                throw new RuntimeException(e);
+            }
+            return result;
+        }
+
+        synchronized void delete() {
+            deleted = true;
+            if (file.exists() && !file.delete()) {
+                log.error("failed to delete cold storage {}", file.getAbsolutePath());
+            }
+        }
+    }
+
+    @Getter
+    public static class ColdMessage {
+
+        private final String cursor;
+        private final Map<?, ?> message;
+
+        ColdMessage(final String cursor, final Map<?, ?> message) {
+            this.cursor = cursor;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package org.mib.cochat.room;
+
+import com.google.common.collect.Lists;
+import org.mib.cochat.message.Message;
+import org.mib.cochat.message.RawFile;
+import org.mib.cochat.message.Text;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static org.mib.common.validator.Validator.validateIntPositive;
+import static org.mib.common.validator.Validator.validateObjectNotNull;
+import static org.mib.common.validator.Validator.validateStringNotBlank;
+
+/**
+ * Messages of a room ordered by their sequence in the room. Appends take the next sequence and insert under one lock,
+ * so a reader that sees a message also sees every message sequenced before it and cursors never skip a message;
+ * removals and seeks are O(log n) and readers never lock, iterating a weakly consistent view.
+ * <p>
+ * Sequences start from the clock, in units of {@code 1 << SEQUENCE_CLOCK_SHIFT} per millisecond, and only ever
+ * grow by one otherwise. That keeps them unique across restarts without persisting a high-water mark, even when
+ * the newest messages were deleted, and lets a timestamp be turned into a lower bound of sequences appended since.
+ */
+public class MessageTimeline implements Iterable<Message> {
+
+    private static final int SEQUENCE_CLOCK_SHIFT = 10;
+    private static final int MESSAGE_OVERHEAD_BYTES = 128;
+
+    private volatile ConcurrentSkipListMap<Long, Message> messages;
+    private final AtomicInteger size;
+    private final AtomicLong footprint;
+    // guarded by this
+    private long lastSequence;
+
+    public MessageTimeline() {
+        this.messages = new ConcurrentSkipListMap<>();
+        this.size = new AtomicInteger(0);
+        this.footprint = new AtomicLong(0);
+    }
+
+    /**
+     * Sequences the message after all messages of the timeline and inserts it, persisting it in between so the
+     * persisted message carries its sequence.
+     */
+    public void append(Message message, Consumer<Message> persist) {
+        append(message, persist, appended -> { });
+    }
+
+    /**
+     * Like {@link #append(Message, Consumer)}, then hands the message to publish before the next append, so
+     * publications of the timeline are in sequence order too.
+     */
+    public synchronized void append(Message message, Consumer<Message> persist, Consumer<Message> publish) {
+        validateObjectNotNull(message, "message");
+        validateObjectNotNull(persist, "message persist");
+        validateObjectNotNull(publish, "message publish");
+        long sequence = Math.max(lastSequence + 1, System.currentTimeMillis() << SEQUENCE_CLOCK_SHIFT);
+        message.setSequence(sequence);
+        persist.accept(message);
+        lastSequence = sequence;
+        messages.put(sequence, message);
+        size.incrementAndGet();
+        footprint.addAndGet(footprint(message));
+        publish.accept(message);
+    }
+
+    public boolean remove(Message message) {
+        validateObjectNotNull(message, "message");
+        if (!messages.remove(message.getSequence(), message)) return false;
+        size.decrementAndGet();
+        footprint.addAndGet(-footprint(message));
+        return true;
+    }
+
+    /**
+     * Bulk loads an empty timeline with a single sort, for recovery before the room is shared. Messages persisted
+     * before sequencing get sequences from their timestamps, ties broken by token, so the same ones are derived on
+     * every recovery until a snapshot records them.
+     */
+    public synchronized void restore(Collection<Message> restored) {
+        validateObjectNotNull(restored, "restored messages");
+        if (!messages.isEmpty()) throw new IllegalStateException("timeline already populated");
+        TreeMap<Long, Message> sorted = new TreeMap<>();
+        List<Message> unsequenced = Lists.newArrayList();
+        long bytes = 0;
+        for (Message message : restored) {
+            if (message.getSequence() > 0) {
+                sorted.put(message.getSequence(), message);
+            } else {
+                unsequenced.add(message);
+            }
+            bytes += footprint(message);
+        }
+        unsequenced.sort(Comparator.comparingLong(Message::getTimestamp).thenComparing(Message::getToken));
+        long previous = 0;
+        for (Message message : unsequenced) {
+            long sequence = Math.max(previous + 1, message.getTimestamp() << SEQUENCE_CLOCK_SHIFT);
+            while (sorted.containsKey(sequence)) sequence++;
+            message.setSequence(sequence);
+            sorted.put(sequence, message);
+            previous = sequence;
+        }
+        // built from a sorted map in linear time
+        messages = new ConcurrentSkipListMap<>(sorted);
+        size.set(sorted.size());
+        footprint.set(bytes);
+        lastSequence = sorted.isEmpty() ? 0 : sorted.lastKey();
+    }
+
+    /**
+     * @return the oldest message, or null if the timeline is empty
+     */
+    public Message first() {
+        Map.Entry<Long, Message> first = messages.firstEntry();
+        return first == null ? null : first.getValue();
+    }
+
+    /**
+     * @return live view of messages appended no earlier than the given timestamp, in timeline order; it may lead
+     * with a few messages created a little earlier but appended at or after it
+     */
+    public Collection<Message> since(long timestamp) {
+        return messages.tailMap(floor(timestamp), true).values();
+    }
+
+    /**
+     * @return at most limit messages appended no earlier than the given timestamp, in timeline order
+     */
+    public List<Message> since(long timestamp, int limit) {
+        return take(since(timestamp), limit);
+    }
+
+    /**
+     * @return at most limit messages positioned strictly after the given cursor, in timeline order
+     * @see #cursor(Message)
+     */
+    public List<Message> after(String cursor, int limit) {
+        return take(messages.tailMap(parse(cursor), false).values(), limit);
+    }
+
+    /**
+     * @return opaque position of the message in its room timeline, usable with {@link #after(String, int)}
+     */
+    public static String cursor(Message message) {
+        validateObjectNotNull(message, "message");
+        if (message.getSequence() <= 0) throw new IllegalArgumentException("message " + message.getToken() + " not sequenced");
+        return Long.toString(message.getSequence());
+    }
+
+    /**
+     * @return cursor positioned right before the first message appended at the given timestamp
+     */
+    public static String cursorAt(long timestamp) {
+        return Long.toString(floor(timestamp) - 1);
+    }
+
+    public static int compareCursors(String cursor, String other) {
+        return Long.compare(parse(cursor), parse(other));
+    }
+
+    /**
+     * @return sequence the cursor is positioned at
+     */
+    public static long parse(String cursor) {
+        validateStringNotBlank(cursor, "cursor");
+        try {
+            return Long.parseLong(cursor);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid cursor " + cursor, e);
+        }
+    }
+
+    /**
+     * @return approximate heap bytes held by the message, counting a text body the same whether it's on heap or in an
+     * arena so retention doesn't change with where bodies live
+     */
+    public static long footprint(Message message) {
+        long bytes = MESSAGE_OVERHEAD_BYTES + 2L * message.getToken().length();
+        if (message instanceof Text) {
+            bytes += 2L * ((Text) message).getTextLength();
+        } else if (message instanceof RawFile) {
+            bytes += 2L * ((RawFile) message).getName().length();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return whether the message is positioned at or before the given cursor
+     */
+    public static boolean isCovered(Message message, String cursor) {
+        validateObjectNotNull(message, "message");
+        return message.getSequence() <= parse(cursor);
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return approximate heap bytes held by the messages in this timeline
+     */
+    public long footprint() {
+        return footprint.get();
+    }
+
+    public boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    public void clear() {
+        while (!messages.isEmpty()) {
+            Map.Entry<Long, Message> first = messages.pollFirstEntry();
+            if (first != null) {
+                size.decrementAndGet();
+                footprint.addAndGet(-footprint(first.getValue()));
+            }
+        }
+    }
+
+    @Override
+    public Iterator<Message> iterator() {
+        return messages.values().iterator();
+    }
+
+    private static long floor(long timestamp) {
+        if (timestamp < 0) throw new IllegalArgumentException("negative timestamp " + timestamp);
+        return timestamp << SEQUENCE_CLOCK_SHIFT;
+    }
+
+    private static List<Message> take(Collection<Message> view, int limit) {
+        validateIntPositive(limit, "limit");
+        List<Message> result = Lists.newArrayListWithCapacity(Math.min(limit, 64));
+        for (Message message : view) {
+            if (result.size() >= limit) break;
+            result.add(message);
+        }
+        return result;
+    }
+}
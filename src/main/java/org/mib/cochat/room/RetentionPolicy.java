@@ -0,0 +1,37 @@
+package org.mib.cochat.room;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Bounds on the hot history of a room, zero meaning unbounded.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RetentionPolicy {
+    private int maxMessages;
+    private int maxAgeSeconds;
+    private long maxBytes;
+
+    /**
+     * @return this policy held within the bound: each limit is the tighter of the two, a limit unbounded in one
+     * taken from the other
+     */
+    public RetentionPolicy within(RetentionPolicy bound) {
+        return new RetentionPolicy((int) tighter(maxMessages, bound.maxMessages), (int) tighter(maxAgeSeconds, bound.maxAgeSeconds),
+                tighter(maxBytes, bound.maxBytes));
+    }
+
+    public boolean isExceeded(int messages, long bytes, long ageMillis) {
+        return (maxMessages > 0 && messages > maxMessages) || (maxBytes > 0 && bytes > maxBytes) ||
+                (maxAgeSeconds > 0 && ageMillis > maxAgeSeconds * 1000L);
+    }
+
+    private static long tighter(long limit, long bound) {
+        if (limit <= 0) return bound;
+        if (bound <= 0) return limit;
+        return Math.min(limit, bound);
+    }
+}
@@ -1,14 +1,11 @@
 package org.mib.cochat.room;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.google.common.collect.Lists;
 import lombok.Getter;
-import org.apache.commons.lang3.RandomStringUtils;
+import lombok.Setter;
 import org.mib.cochat.chatter.Chatter;
 import org.mib.cochat.context.CochatScope;
-import org.mib.cochat.message.Message;
-
-import java.util.List;
+import org.mib.cochat.token.Tokens;
 
 import static org.mib.common.validator.Validator.validateObjectNotNull;
 import static org.mib.common.validator.Validator.validateStringNotBlank;
@@ -16,12 +13,13 @@ import static org.mib.common.validator.Validator.validateStringNotBlank;
 @Getter
 public class Room {
 
-    private static final int ROOM_TOKEN_LEN = 6;
+    private static final int ROOM_TOKEN_LEN = 10;
 
     private final String token;
     private final Chatter creator;
     private final String name;
-    private @JsonIgnore final List<Message> messages;
+    private @JsonIgnore final MessageTimeline messages;
+    private @JsonIgnore @Setter volatile RetentionPolicy retentionPolicy;
 
     public Room(final String name) {
         this(CochatScope.getChatter(), name);
@@ -30,10 +28,10 @@ public class Room {
     public Room(final Chatter creator, final String name) {
         validateObjectNotNull(creator, "room creator");
         validateStringNotBlank(name, "room name");
-        this.token = RandomStringUtils.randomAlphanumeric(ROOM_TOKEN_LEN);
+        this.token = Tokens.random(ROOM_TOKEN_LEN);
         this.creator = creator;
         this.name = name;
-        this.messages = Lists.newArrayList();
+        this.messages = new MessageTimeline();
     }
 
     public Room(final Chatter creator, final String token, final String name) {
@@ -43,6 +41,6 @@ public class Room {
         this.token = token;
         this.creator = creator;
         this.name = name;
-        this.messages = Lists.newArrayList();
+        this.messages = new MessageTimeline();
     }
 }
@@ -4,6 +4,7 @@ import com.google.common.collect.Maps;
 import io.undertow.websockets.core.WebSocketChannel;
 import lombok.extern.slf4j.Slf4j;
 import org.mib.cochat.chatter.Chatter;
+import org.mib.cochat.chatter.ChatterIndex;
 import org.mib.cochat.context.CochatScope;
 import org.mib.cochat.repo.Repository;
 import org.mib.rest.exception.ForbiddenException;
@@ -17,11 +18,14 @@ import static org.mib.common.validator.Validator.validateStringNotBlank;
 public class ChatterService {
 
     private final Repository<String, Chatter> repository;
+    private final ChatterIndex index;
     private final Map<WebSocketChannel, Chatter> channelChatterMap;
 
     public ChatterService(final Repository<String, Chatter> repository, final boolean isWebSocketEnabled) {
         validateObjectNotNull(repository, "chatter repo");
         this.repository = repository;
+        this.index = new ChatterIndex();
+        repository.forEach((token, chatter) -> index.put(chatter));
         this.channelChatterMap = isWebSocketEnabled ? Maps.newConcurrentMap() : null;
     }
 
@@ -29,8 +33,11 @@ public class ChatterService {
         validateStringNotBlank(name, "chatter name");
         Chatter chatter = new Chatter(name);
         if (!repository.store(chatter.getToken(), chatter)) {
-            chatter = new Chatter(name);
+            // the token grants a session, so it's kept out of logs and messages
+            log.error("chatter token of {} already occupied", name);
+            throw new RuntimeException("failed to store chatter " + name);
         }
+        index.put(chatter);
         log.info("created chatter {} with token {}", name, chatter.getToken());
         return chatter;
     }
@@ -38,7 +45,10 @@ public class ChatterService {
     public Chatter getChatter(String token) {
         validateStringNotBlank(token, "chatter token");
         log.debug("retrieving chatter with token {}...", token);
-        return repository.retrieve(token);
+        Chatter chatter = index.get(token);
+        // the index holds every chatter from startup on, so a miss isn't cached; doing so could index a chatter
+        // again after a racing delete removed it
+        return chatter != null ? chatter : repository.retrieve(token);
     }
 
     public Chatter getChatter(WebSocketChannel channel) {
@@ -81,6 +91,7 @@ public class ChatterService {
             log.error("permission denied to delete chatter with token {}", token);
             throw new ForbiddenException("permission denied for deleting chatter " + token);
         }
+        index.remove(token);
         if (repository.delete(token)) {
             log.info("deleted chatter with token {}", token);
         } else {
@@ -1,7 +1,10 @@
 package org.mib.cochat.service;
 
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.mib.cochat.message.Image;
 import org.mib.cochat.message.RawFile;
@@ -10,14 +13,20 @@ import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
 
 import static org.mib.common.validator.Validator.validateObjectNotNull;
 import static org.mib.common.validator.Validator.validateStringNotBlank;
@@ -26,20 +35,79 @@ import static org.mib.common.validator.Validator.validateStringNotBlank;
 public class FileService {
 
     private static final String FILE_PATH_FORMAT = "%s%s%s_%s";
+    private static final String STAGING_FILE_PREFIX = ".upload-";
+    private static final String BLOB_DIR = "blobs";
+    private static final String THUMBNAIL_SUFFIX = ".thumb";
+    private static final int LOCK_STRIPES = 64;
 
     private final String directory;
+    // number of file messages referencing each blob by digest, changed along with the blob under its digest's lock
+    private final ConcurrentMap<String, Integer> references;
+    private final Striped<Lock> locks;
+    private final ThumbnailGenerator thumbnailGenerator;
 
     public FileService(final String directory) {
+        this(directory, null);
+    }
+
+    /**
+     * @param thumbnailGenerator generator of image thumbnails, null to serve originals only
+     */
+    public FileService(final String directory, final ThumbnailGenerator thumbnailGenerator) {
         validateStringNotBlank(directory, "file directory");
         this.directory = directory;
+        this.references = Maps.newConcurrentMap();
+        this.locks = Striped.lock(LOCK_STRIPES);
+        this.thumbnailGenerator = thumbnailGenerator;
+        sweepStagingFiles();
+    }
+
+    /**
+     * Deletes staging files left behind by uploads interrupted by a crash, none of which can be in use yet.
+     */
+    private void sweepStagingFiles() {
+        File[] stale = new File(directory).listFiles((dir, name) -> name.startsWith(STAGING_FILE_PREFIX));
+        if (stale == null) return;
+        for (File file : stale) {
+            if (file.delete()) {
+                log.info("deleted stale staging file {}", file.getAbsolutePath());
+            } else {
+                log.warn("unable to delete stale staging file {}", file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Streams the content into a staging file inside the store, hashing it on the way, so that it lands in the blob
+     * store with a rename instead of another copy.
+     */
+    public RawFile createFile(String filename, InputStream content, String mimeType) throws IOException {
+        validateObjectNotNull(content, "file content");
+        Path staging = Files.createTempFile(Paths.get(directory), STAGING_FILE_PREFIX, null);
+        try {
+            HashingInputStream hashing = new HashingInputStream(Hashing.sha256(), content);
+            Files.copy(hashing, staging, StandardCopyOption.REPLACE_EXISTING);
+            return createFile(filename, staging, hashing.hash().toString(), mimeType);
+        } finally {
+            Files.deleteIfExists(staging);
+        }
     }
 
-    public RawFile createFile(String filename, File tmpFile, String mimeType) throws IOException {
-        validateObjectNotNull(tmpFile, "tmp file");
+    private RawFile createFile(String filename, Path content, String digest, String mimeType) {
         validateStringNotBlank(mimeType, "file mime type");
-        log.info("creating file {} at {} of type {}...", filename, tmpFile.getAbsolutePath(), mimeType);
+        log.info("creating file {} at {} of type {} with digest {}...", filename, content, mimeType, digest);
         RawFile file = null;
+        Dimension dimension = null;
         if (StringUtils.startsWithIgnoreCase(mimeType, "image/")) {
+            try {
+                dimension = ImageHeaderProber.probe(content);
+            } catch (IOException e) {
+                log.warn("failed to probe image header of {}, falling back to image readers", filename, e);
+            }
+        }
+        if (dimension != null) {
+            file = new Image(filename, digest, dimension.height, dimension.width);
+        } else if (StringUtils.startsWithIgnoreCase(mimeType, "image/")) {
             Iterator<ImageReader> readers = ImageIO.getImageReadersByMIMEType(mimeType);
             if (!readers.hasNext()) {
                 log.error("no image readers retrieved for mime type {}", mimeType);
@@ -47,10 +115,10 @@ public class FileService {
             }
             while (readers.hasNext()) {
                 ImageReader reader = readers.next();
-                try (ImageInputStream iis = new FileImageInputStream(tmpFile)) {
+                try (ImageInputStream iis = new FileImageInputStream(content.toFile())) {
                     reader.setInput(iis);
                     int height = reader.getHeight(reader.getMinIndex()), width = reader.getWidth(reader.getMinIndex());
-                    file = new Image(filename, height, width);
+                    file = new Image(filename, digest, height, width);
                     break;
                 } catch (IOException e) {
                     log.error("failed to read height and width for image {}", filename, e);
@@ -62,23 +130,109 @@ public class FileService {
                 throw new RuntimeException("no valid image reader for image " + filename);
             }
         } else {
-            file = new RawFile(filename);
+            file = new RawFile(filename, digest);
         }
-        String path = getFilePath(file);
-        try (OutputStream os = new FileOutputStream(path); InputStream stream = new FileInputStream(tmpFile)) {
-            IOUtils.copy(stream, os);
-            return file;
+        Path blob = getBlobPath(digest);
+        Lock lock = locks.get(digest);
+        lock.lock();
+        try {
+            if (!references.containsKey(digest) && !Files.exists(blob)) {
+                Files.createDirectories(blob.getParent());
+                moveFile(content, blob);
+            } else {
+                log.debug("blob {} already stored, dropping duplicate content {}", digest, content);
+                Files.deleteIfExists(content);
+            }
+            references.merge(digest, 1, Integer::sum);
         } catch (IOException e) {
-            log.error("failed to write content to file {}", path, e);
+            log.error("failed to write content to blob {}", blob, e);
             throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+        if (file instanceof Image) requestThumbnail((Image) file);
+        return file;
+    }
+
+    /**
+     * Counts a stored file as a reference to its blob, for rebuilding reference counts from recovered messages.
+     */
+    public void retainFile(RawFile file) {
+        validateObjectNotNull(file, "raw file");
+        String digest = file.getDigest();
+        if (digest == null) return;
+        Lock lock = locks.get(digest);
+        lock.lock();
+        try {
+            references.merge(digest, 1, Integer::sum);
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Drops the reference of the file to its blob, deleting the blob along with the last reference.
+     */
     public void deleteFile(RawFile file) {
         validateObjectNotNull(file, "raw file");
         String token = file.getToken();
         log.info("deleting file {}...", token);
-        File f = new File(getFilePath(file));
+        if (file.getDigest() != null) {
+            releaseBlob(file.getDigest(), token);
+            return;
+        }
+        removeFile(new File(getFilePath(file)), token);
+        removeThumbnail(file);
+    }
+
+    private void releaseBlob(String digest, String token) {
+        Lock lock = locks.get(digest);
+        lock.lock();
+        try {
+            Integer count = references.get(digest);
+            if (count != null && count > 1) {
+                references.put(digest, count - 1);
+                return;
+            }
+            if (count == null) log.warn("blob {} of file {} not referenced, deleting it...", digest, token);
+            removeFile(getBlobPath(digest).toFile(), token);
+            references.remove(digest);
+        } finally {
+            lock.unlock();
+        }
+        // thumbnails are derived and regenerated when missed, so they go without holding the lock
+        removeThumbnail(getBlobPath(digest).toString());
+    }
+
+    /**
+     * Queues generation of the thumbnail of the image in the background, if thumbnails are enabled and it's missing.
+     */
+    public void requestThumbnail(Image image) {
+        validateObjectNotNull(image, "image");
+        if (thumbnailGenerator == null) return;
+        thumbnailGenerator.submit(Paths.get(getFilePath(image)), Paths.get(getThumbnailPath(image)));
+    }
+
+    /**
+     * @return path of the thumbnail next to the file, which may not be generated yet
+     */
+    public String getThumbnailPath(RawFile file) {
+        return getFilePath(file) + THUMBNAIL_SUFFIX;
+    }
+
+    private void removeThumbnail(RawFile file) {
+        if (file instanceof Image) removeThumbnail(getFilePath(file));
+    }
+
+    private void removeThumbnail(String filePath) {
+        try {
+            Files.deleteIfExists(Paths.get(filePath + THUMBNAIL_SUFFIX));
+        } catch (IOException e) {
+            log.warn("failed to delete thumbnail of file {}", filePath, e);
+        }
+    }
+
+    private void removeFile(File f, String token) {
         if (f.exists() && f.isFile()) {
             if (f.delete()) {
                 log.info("deleted file {} for token {}", f.getAbsolutePath(), token);
@@ -93,30 +247,41 @@ public class FileService {
 
     public String getFilePath(RawFile file) {
         validateObjectNotNull(file, "file");
+        if (file.getDigest() != null) return getBlobPath(file.getDigest()).toString();
         return getFilePath(file.getToken(), file.getName());
     }
 
-    public void refreshLocationForFile(RawFile file, String originToken) throws IOException {
-        validateObjectNotNull(file, "file");
-        String cur = getFilePath(originToken, file.getName()), next = getFilePath(file);
-        moveFile(cur, next);
-    }
-
-    private void copyFile(String src, String dest) throws IOException {
-        log.debug("copying file {} to {}...", src, dest);
-        try (OutputStream os = new FileOutputStream(dest); InputStream stream = new FileInputStream(src)) {
-            IOUtils.copy(stream, os);
-        }
-    }
-
-    private void moveFile(String src, String dest) throws IOException {
+    /**
+     * Renames the file into place, falling back to an in-kernel transfer when source and destination are on
+     * different file systems.
+     */
+    private void moveFile(Path src, Path dest) throws IOException {
         log.debug("moving file from {} to {}...", src, dest);
-        copyFile(src, dest);
-        if (!new File(src).delete()) {
+        try {
+            Files.move(src, dest, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        } catch (AtomicMoveNotSupportedException e) {
+            log.debug("{} and {} on different file systems, transferring...", src, dest);
+        }
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dest, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long position = 0, size = in.size();
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+        if (!src.toFile().delete()) {
             log.error("failed to delete src file {} after moving it to {}", src, dest);
         }
     }
 
+    /**
+     * @return path of the blob sharded by the first two bytes of the digest, e.g. blobs/ab/cd/abcd...
+     */
+    private Path getBlobPath(String digest) {
+        return Paths.get(directory, BLOB_DIR, digest.substring(0, 2), digest.substring(2, 4), digest);
+    }
+
     private String getFilePath(String token, String filename) {
         return String.format(FILE_PATH_FORMAT, directory, File.separator, token, filename);
     }
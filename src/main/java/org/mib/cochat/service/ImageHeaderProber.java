@@ -0,0 +1,119 @@
+package org.mib.cochat.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.mib.common.validator.Validator.validateObjectNotNull;
+
+/**
+ * Reads image dimensions straight from the headers of png, gif, bmp, webp and jpeg files with a few small positional
+ * reads, without decoding anything. Jpeg segments are skipped by their lengths up to the frame header, so large
+ * exif blocks are never read.
+ */
+@Slf4j
+final class ImageHeaderProber {
+
+    private static final int HEADER_BYTES = 32;
+    private static final int SEGMENT_HEADER_BYTES = 9;
+
+    private ImageHeaderProber() {}
+
+    /**
+     * @return width and height of the image, or null if the format is not recognized or the header is malformed
+     */
+    static Dimension probe(Path image) throws IOException {
+        validateObjectNotNull(image, "image path");
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ)) {
+            ByteBuffer header = read(channel, 0, HEADER_BYTES);
+            Dimension dimension;
+            if (header.remaining() >= 24 && header.getInt(0) == 0x89504e47 && header.getInt(4) == 0x0d0a1a0a) {
+                dimension = new Dimension(header.getInt(16), header.getInt(20));
+            } else if (header.remaining() >= 10 && header.get(0) == 'G' && header.get(1) == 'I' && header.get(2) == 'F') {
+                header.order(ByteOrder.LITTLE_ENDIAN);
+                dimension = new Dimension(header.getShort(6) & 0xffff, header.getShort(8) & 0xffff);
+            } else if (header.remaining() >= 26 && header.get(0) == 'B' && header.get(1) == 'M') {
+                dimension = bmp(header.order(ByteOrder.LITTLE_ENDIAN));
+            } else if (header.remaining() >= 30 && header.getInt(0) == 0x52494646 && header.getInt(8) == 0x57454250) {
+                dimension = webp(header);
+            } else if (header.remaining() >= 4 && (header.getShort(0) & 0xffff) == 0xffd8) {
+                dimension = jpeg(channel);
+            } else {
+                return null;
+            }
+            if (dimension == null || dimension.width <= 0 || dimension.height <= 0) {
+                log.warn("malformed image header in {}", image);
+                return null;
+            }
+            return dimension;
+        }
+    }
+
+    private static Dimension bmp(ByteBuffer header) {
+        // os/2 core headers have 16 bits dimensions, later ones 32 bits with negative height for top-down bitmaps
+        if (header.getInt(14) == 12) {
+            return new Dimension(header.getShort(18) & 0xffff, header.getShort(20) & 0xffff);
+        }
+        return new Dimension(header.getInt(18), Math.abs(header.getInt(22)));
+    }
+
+    private static Dimension webp(ByteBuffer header) {
+        int chunk = header.getInt(12);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        switch (chunk) {
+            case 0x56503820: // "VP8 ", lossy key frame
+                return new Dimension(header.getShort(26) & 0x3fff, header.getShort(28) & 0x3fff);
+            case 0x5650384c: // "VP8L", lossless with 14 bits dimensions minus one packed after the signature byte
+                int bits = header.getInt(21);
+                return new Dimension((bits & 0x3fff) + 1, ((bits >>> 14) & 0x3fff) + 1);
+            case 0x56503858: // "VP8X", extended with 24 bits canvas dimensions minus one
+                return new Dimension(uint24(header, 24) + 1, uint24(header, 27) + 1);
+            default:
+                return null;
+        }
+    }
+
+    private static Dimension jpeg(FileChannel channel) throws IOException {
+        long position = 2, size = channel.size();
+        while (position + 4 <= size) {
+            ByteBuffer segment = read(channel, position, SEGMENT_HEADER_BYTES);
+            if (segment.remaining() < 4 || segment.get(0) != (byte) 0xff) return null;
+            int marker = segment.get(1) & 0xff;
+            if (marker == 0xff) {
+                // fill byte before the marker
+                position++;
+                continue;
+            }
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                position += 2;
+                continue;
+            }
+            if (marker == 0xd9 || marker == 0xda) return null;
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                if (segment.remaining() < SEGMENT_HEADER_BYTES) return null;
+                return new Dimension(segment.getShort(7) & 0xffff, segment.getShort(5) & 0xffff);
+            }
+            position += 2 + (segment.getShort(2) & 0xffff);
+        }
+        return null;
+    }
+
+    private static int uint24(ByteBuffer buffer, int index) {
+        return (buffer.get(index) & 0xff) | (buffer.get(index + 1) & 0xff) << 8 | (buffer.get(index + 2) & 0xff) << 16;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) break;
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
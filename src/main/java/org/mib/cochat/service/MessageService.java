@@ -7,11 +7,13 @@ import org.mib.cochat.message.Message;
 import org.mib.cochat.message.RawFile;
 import org.mib.cochat.message.Text;
 import org.mib.cochat.repo.Repository;
+import org.mib.cochat.room.Room;
 import org.mib.rest.exception.ForbiddenException;
 import org.mib.rest.exception.ResourceNotFoundException;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
 
 import static org.mib.common.validator.Validator.validateObjectNotNull;
 import static org.mib.common.validator.Validator.validateStringNotBlank;
@@ -29,12 +31,22 @@ public class MessageService {
         this.fileService = fileService;
     }
 
-    public Message createMessage(String content) throws IOException {
-        return storeMessage(new Text(content));
+    /**
+     * @param publish invoked with the stored message, in the room's sequence order
+     */
+    public Message createMessage(Room room, String content, Consumer<Message> publish) throws IOException {
+        return storeMessage(room, new Text(content), publish);
     }
 
-    public Message createMessage(String filename, File tmpFile, String mimeType) throws IOException {
-        return storeMessage(fileService.createFile(filename, tmpFile, mimeType));
+    public Message createMessage(Room room, String filename, InputStream content, String mimeType,
+                                 Consumer<Message> publish) throws IOException {
+        RawFile file = fileService.createFile(filename, content, mimeType);
+        try {
+            return storeMessage(room, file, publish);
+        } catch (RuntimeException e) {
+            fileService.deleteFile(file);
+            throw e;
+        }
     }
 
     public Message getMessage(String token) {
@@ -64,28 +76,49 @@ public class MessageService {
             log.error("permission denied to delete message {}", token);
             throw new ForbiddenException("permission denied to delete message " + token);
         }
+        removeMessage(message);
+        log.info("deleted message {}", token);
+    }
+
+    /**
+     * Drops a message past its room's retention without permission checks, along with its file; cold copies of file
+     * messages are marked expired.
+     */
+    public void evictMessage(Message message) {
+        validateObjectNotNull(message, "message");
+        log.debug("evicting message {}...", message.getToken());
+        removeMessage(message);
+    }
+
+    private void removeMessage(Message message) {
+        String token = message.getToken();
         if (message instanceof RawFile) {
             fileService.deleteFile((RawFile) message);
         }
-        if (repository.delete(token)) {
-            log.info("deleted message {}", token);
-        } else {
+        if (message.getRoom() != null) {
+            message.getRoom().getMessages().remove(message);
+        }
+        if (!repository.delete(token)) {
             log.error("unable to delete message {}", token);
             throw new RuntimeException("failed to delete message " + token);
         }
     }
 
-    private Message storeMessage(Message message) throws IOException {
-        while (!repository.store(message.getToken(), message)) {
-            log.warn("message token {} already occupied, re-generating...", message.getToken());
-            String originalToken = message.getToken();
-            message.refreshToken();
-            if (message instanceof RawFile) {
-                RawFile file = (RawFile) message;
-                fileService.refreshLocationForFile(file, originalToken);
+    /**
+     * Appends the message to the room timeline, storing it once it's sequenced and before it's visible there.
+     */
+    private Message storeMessage(Room room, Message message, Consumer<Message> publish) {
+        validateObjectNotNull(room, "room");
+        validateObjectNotNull(publish, "message publish");
+        message.setRoom(room);
+        room.getMessages().append(message, sequenced -> {
+            // tokens lead with the millisecond and carry 8 random characters, a collision is a bug rather than bad luck
+            if (!repository.store(sequenced.getToken(), sequenced)) {
+                log.error("message token {} already occupied", sequenced.getToken());
+                throw new RuntimeException("failed to store message " + sequenced.getToken());
             }
-        }
-        log.info("created message with token {}", message.getToken());
+        }, publish);
+        log.info("created message with token {} at sequence {} of room {}", message.getToken(), message.getSequence(), room.getToken());
         return message;
     }
 }
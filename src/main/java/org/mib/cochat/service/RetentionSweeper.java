@@ -0,0 +1,70 @@
+package org.mib.cochat.service;
+
+import com.google.common.collect.Lists;
+import lombok.extern.slf4j.Slf4j;
+import org.mib.cochat.message.Message;
+import org.mib.cochat.repo.Repository;
+import org.mib.cochat.room.ColdStorage;
+import org.mib.cochat.room.MessageTimeline;
+import org.mib.cochat.room.RetentionPolicy;
+import org.mib.cochat.room.Room;
+
+import java.util.List;
+
+import static org.mib.common.validator.Validator.validateObjectNotNull;
+
+/**
+ * Periodically trims every room timeline down to its retention policy, held within the default one, oldest
+ * messages first. Evicted messages are moved to cold storage when one is configured, otherwise deleted along with
+ * their files.
+ */
+@Slf4j
+public class RetentionSweeper implements Runnable {
+
+    private final Repository<String, Room> roomRepository;
+    private final MessageService messageService;
+    private final RetentionPolicy defaultPolicy;
+    private final ColdStorage coldStorage;
+
+    public RetentionSweeper(final Repository<String, Room> roomRepository, final MessageService messageService,
+                            final RetentionPolicy defaultPolicy, final ColdStorage coldStorage) {
+        validateObjectNotNull(roomRepository, "room repository");
+        validateObjectNotNull(messageService, "message service");
+        validateObjectNotNull(defaultPolicy, "default retention policy");
+        this.roomRepository = roomRepository;
+        this.messageService = messageService;
+        this.defaultPolicy = defaultPolicy;
+        this.coldStorage = coldStorage;
+    }
+
+    @Override
+    public void run() {
+        long now = System.currentTimeMillis();
+        roomRepository.forEach((token, room) -> {
+            try {
+                sweep(room, now);
+            } catch (Exception e) {
+                log.error("failed to sweep room {}", token, e);
+            }
+        });
+    }
+
+    private void sweep(Room room, long now) {
+        // rooms may only tighten the configured bounds, never lift them
+        RetentionPolicy policy = room.getRetentionPolicy() != null ? room.getRetentionPolicy().within(defaultPolicy) : defaultPolicy;
+        MessageTimeline timeline = room.getMessages();
+        int size = timeline.size();
+        long footprint = timeline.footprint();
+        List<Message> expired = Lists.newArrayList();
+        for (Message message : timeline) {
+            if (!policy.isExceeded(size, footprint, now - message.getTimestamp())) break;
+            expired.add(message);
+            size--;
+            footprint -= MessageTimeline.footprint(message);
+        }
+        if (expired.isEmpty()) return;
+        boolean cold = coldStorage != null && coldStorage.append(room.getToken(), expired);
+        expired.forEach(message -> messageService.evictMessage(message));
+        log.info("evicted {} messages from room {} to {}", expired.size(), room.getToken(), cold ? "cold storage" : "void");
+    }
+}
@@ -0,0 +1,121 @@
+package org.mib.cochat.service;
+
+import com.google.common.collect.Lists;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Summary;
+import lombok.extern.slf4j.Slf4j;
+import org.mib.cochat.message.Information;
+import org.mib.cochat.message.Message;
+import org.mib.cochat.room.Room;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import static org.mib.common.validator.Validator.validateIntPositive;
+import static org.mib.common.validator.Validator.validateObjectNotNull;
+
+/**
+ * Fans published information out to room subscribers off the publishing thread. Rooms are sharded over a fixed set
+ * of bounded queues, each drained in batches by its own thread, so fan-out of one room stays in publish order
+ * while rooms on different shards proceed in parallel. A full shard pushes back on message publishers for a while
+ * and then drops the fan-out: the message is stored already, pollers pick it up from their cursors and streams
+ * when they reconnect. Messages are published from worker threads, since they wait; notifications are published from
+ * io threads and never wait.
+ */
+@Slf4j
+class RoomDispatcher {
+
+    private static final int BATCH_SIZE = 64;
+    private static final long OFFER_TIMEOUT_MILLIS = 1000;
+
+    private static final Gauge QUEUE_DEPTH = Gauge.build()
+            .name("cochat_dispatch_queue_depth").help("pending room fan-outs per dispatcher shard")
+            .labelNames("shard").register();
+    private static final Summary DISPATCH_LAG = Summary.build()
+            .name("cochat_dispatch_lag_seconds").help("delay between publish and fan-out of room information")
+            .register();
+    private static final Counter DROPPED = Counter.build()
+            .name("cochat_dispatch_dropped_total").help("room fan-outs dropped on a full dispatcher shard")
+            .labelNames("shard").register();
+
+    private final List<BlockingQueue<Dispatch>> shards;
+    private final BiConsumer<Room, Information> fanOut;
+
+    RoomDispatcher(final int threads, final int queueCapacity, final BiConsumer<Room, Information> fanOut) {
+        validateIntPositive(threads, "dispatcher threads");
+        validateIntPositive(queueCapacity, "dispatcher queue capacity");
+        validateObjectNotNull(fanOut, "fan out");
+        this.fanOut = fanOut;
+        this.shards = Lists.newArrayListWithCapacity(threads);
+        for (int i = 0; i < threads; i++) {
+            BlockingQueue<Dispatch> queue = new ArrayBlockingQueue<>(queueCapacity);
+            shards.add(queue);
+            String shard = String.valueOf(i);
+            Thread worker = new Thread(() -> drain(shard, queue), "room-dispatcher-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    void dispatch(Room room, Information info) {
+        validateObjectNotNull(room, "room");
+        validateObjectNotNull(info, "info");
+        int shard = (room.getToken().hashCode() & Integer.MAX_VALUE) % shards.size();
+        // counted before it's offered, as the drainer may take it right away
+        QUEUE_DEPTH.labels(String.valueOf(shard)).inc();
+        boolean queued;
+        try {
+            queued = shards.get(shard).offer(new Dispatch(room, info), info instanceof Message ? OFFER_TIMEOUT_MILLIS : 0,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queued = false;
+        }
+        if (!queued) {
+            QUEUE_DEPTH.labels(String.valueOf(shard)).dec();
+            DROPPED.labels(String.valueOf(shard)).inc();
+            log.error("dispatcher shard {} full, dropped fan-out of {} to room {}", shard, info.getType(), room.getToken());
+        }
+    }
+
+    private void drain(String shard, BlockingQueue<Dispatch> queue) {
+        List<Dispatch> batch = Lists.newArrayListWithCapacity(BATCH_SIZE);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            queue.drainTo(batch, BATCH_SIZE - 1);
+            QUEUE_DEPTH.labels(shard).dec(batch.size());
+            for (Dispatch dispatch : batch) {
+                DISPATCH_LAG.observe((System.nanoTime() - dispatch.enqueuedAt) / 1e9);
+                try {
+                    fanOut.accept(dispatch.room, dispatch.info);
+                } catch (Exception e) {
+                    log.error("failed to fan out info to room {}", dispatch.room.getToken(), e);
+                }
+            }
+            batch.clear();
+        }
+        log.info("room dispatcher shard {} stopped", shard);
+    }
+
+    private static class Dispatch {
+
+        private final Room room;
+        private final Information info;
+        private final long enqueuedAt;
+
+        Dispatch(final Room room, final Information info) {
+            this.room = room;
+            this.info = info;
+            this.enqueuedAt = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.mib.cochat.service;
+
+import org.mib.cochat.message.Information;
+import org.mib.cochat.room.Room;
+
+/**
+ * Callback for information published to a room. Invoked on a room dispatcher thread in publish order, so
+ * implementations must hand any real work off instead of blocking.
+ */
+@FunctionalInterface
+public interface RoomListener {
+
+    void onPublished(Room room, Information info);
+
+    /**
+     * Invoked once the room is deleted, on the deleting thread; nothing is published to the listener afterwards.
+     */
+    default void onDeleted(Room room) {
+    }
+}
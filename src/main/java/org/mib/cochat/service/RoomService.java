@@ -2,27 +2,26 @@ package org.mib.cochat.service;
 
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import io.undertow.websockets.core.WebSocketCallback;
 import io.undertow.websockets.core.WebSocketChannel;
-import io.undertow.websockets.core.WebSockets;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.IOUtils;
 import org.mib.cochat.context.CochatScope;
 import org.mib.cochat.message.Information;
+import org.mib.cochat.message.InformationJson;
 import org.mib.cochat.message.Message;
 import org.mib.cochat.message.Notification;
 import org.mib.cochat.repo.Repository;
+import org.mib.cochat.room.ColdStorage;
+import org.mib.cochat.room.RetentionPolicy;
 import org.mib.cochat.room.Room;
 import org.mib.rest.exception.ForbiddenException;
 import org.mib.rest.exception.ResourceNotFoundException;
 
-import java.io.File;
 import java.io.IOException;
-import java.util.Comparator;
+import java.io.InputStream;
 import java.util.Map;
 import java.util.Set;
 
-import static org.mib.common.ser.Serdes.toJsonText;
 import static org.mib.common.validator.Validator.validateObjectNotNull;
 import static org.mib.common.validator.Validator.validateStringNotBlank;
 
@@ -33,33 +32,32 @@ public class RoomService {
     private final Repository<String, Room> repository;
     private final MessageService messageService;
     private final Map<String, Set<WebSocketChannel>> webSocketChannelsMap;
-    private final WebSocketCallback<Void> webSocketCallback;
-
-    public RoomService(final Repository<String, Room> repository, final MessageService messageService, final boolean isWebSocketEnabled) {
+    private final Map<String, Set<RoomListener>> listenersMap;
+    private final WebSocketBroadcaster webSocketBroadcaster;
+    private final RoomDispatcher dispatcher;
+    private final ColdStorage coldStorage;
+
+    public RoomService(final Repository<String, Room> repository, final MessageService messageService, final ColdStorage coldStorage,
+                       final boolean isWebSocketEnabled, final int webSocketMaxPendingFrames, final int dispatcherThreads,
+                       final int dispatcherQueueCapacity) {
         validateObjectNotNull(repository, "room repository");
         validateObjectNotNull(messageService, "message service");
         this.repository = repository;
         this.messageService = messageService;
+        this.coldStorage = coldStorage;
         this.webSocketChannelsMap = isWebSocketEnabled ? Maps.newConcurrentMap() : null;
-        this.webSocketCallback = isWebSocketEnabled ? new WebSocketCallback<Void>() {
-            @Override
-            public void complete(WebSocketChannel channel, Void context) {
-                log.debug("message delivered to peer {}", channel.getSourceAddress());
-            }
-
-            @Override
-            public void onError(WebSocketChannel channel, Void context, Throwable throwable) {
-                log.error("failed to deliver message to peer {}", channel.getSourceAddress(), throwable);
-            }
-        } : null;
+        this.listenersMap = Maps.newConcurrentMap();
+        this.webSocketBroadcaster = isWebSocketEnabled ? new WebSocketBroadcaster(webSocketMaxPendingFrames) : null;
+        this.dispatcher = new RoomDispatcher(dispatcherThreads, dispatcherQueueCapacity, this::fanOut);
     }
 
-    public Room createRoom(String name) {
+    public Room createRoom(String name, RetentionPolicy retentionPolicy) {
         validateStringNotBlank(name, "room name");
         Room room = new Room(name);
-        while (!repository.store(room.getToken(), room)) {
-            log.warn("room {} occupied, re-generating...");
-            room = new Room(name);
+        room.setRetentionPolicy(retentionPolicy);
+        if (!repository.store(room.getToken(), room)) {
+            log.error("room {} already occupied", room.getToken());
+            throw new RuntimeException("failed to store room " + room.getToken());
         }
         log.info("created room {} with name {}", room.getToken(), name);
         return room;
@@ -97,7 +95,18 @@ public class RoomService {
                 webSocketChannels.forEach(IOUtils::closeQuietly);
             }
         }
+        Set<RoomListener> listeners = listenersMap.remove(token);
+        if (listeners != null) {
+            listeners.forEach(listener -> {
+                try {
+                    listener.onDeleted(room);
+                } catch (Exception e) {
+                    log.error("listener {} failed on deletion of room {}", listener, token, e);
+                }
+            });
+        }
         room.getMessages().forEach(message -> messageService.deleteMessage(message.getToken()));
+        if (coldStorage != null) coldStorage.delete(token);
         if (repository.delete(token)) {
             log.info("deleted room {} with name {}", token, room.getName());
         } else {
@@ -108,22 +117,19 @@ public class RoomService {
 
     public Message publishMessage(String token, String text) throws IOException {
         Room room = getExistingRoom(token);
-        Message message = messageService.createMessage(text);
-        publish(room, message);
-        return message;
+        return messageService.createMessage(room, text, appended -> dispatcher.dispatch(room, appended));
     }
 
-    public Message publishMessage(String token, String name, File tmpFile, String mimeType) throws IOException {
+    public Message publishMessage(String token, String name, InputStream content, String mimeType) throws IOException {
         Room room = getExistingRoom(token);
-        Message message = messageService.createMessage(name, tmpFile, mimeType);
-        publish(room, message);
-        return message;
+        return messageService.createMessage(room, name, content, mimeType, appended -> dispatcher.dispatch(room, appended));
     }
 
     public Notification publishNotification(String token, String content) {
         Room room = getExistingRoom(token);
         Notification notification = new Notification(content);
-        publish(room, notification);
+        notification.setRoom(room);
+        dispatcher.dispatch(room, notification);
         return notification;
     }
 
@@ -155,6 +161,23 @@ public class RoomService {
         IOUtils.closeQuietly(channel);
     }
 
+    public void subscribe(String token, RoomListener listener) {
+        validateStringNotBlank(token, "room token");
+        validateObjectNotNull(listener, "room listener");
+        log.debug("subscribing listener {} to room {}...", listener, token);
+        listenersMap.computeIfAbsent(token, t -> Sets.newConcurrentHashSet()).add(listener);
+    }
+
+    public void unsubscribe(String token, RoomListener listener) {
+        validateStringNotBlank(token, "room token");
+        validateObjectNotNull(listener, "room listener");
+        log.debug("unsubscribing listener {} from room {}...", listener, token);
+        listenersMap.computeIfPresent(token, (t, listeners) -> {
+            listeners.remove(listener);
+            return listeners.isEmpty() ? null : listeners;
+        });
+    }
+
     public void purgeRoom(String token) {
         validateStringNotBlank(token, "room token");
         log.info("purging room {}...", token);
@@ -168,28 +191,26 @@ public class RoomService {
             throw new ForbiddenException("permission denied to purge room " + token);
         }
         room.getMessages().forEach(message -> messageService.deleteMessage(message.getToken()));
-        synchronized (room.getMessages()) {
-            room.getMessages().clear();
-        }
+        room.getMessages().clear();
+        if (coldStorage != null) coldStorage.delete(token);
         log.info("purged room {}", token);
     }
 
-    private void publish(Room room, Information info) {
-        validateObjectNotNull(room, "room");
-        validateObjectNotNull(info, "info");
-        info.setRoom(room);
-        if (info instanceof Message) {
-            synchronized (room.getMessages()) {
-                Message msg = (Message) info;
-                room.getMessages().add(msg);
-                room.getMessages().sort(Comparator.comparingLong(Message::getTimestamp));
-            }
+    private void fanOut(Room room, Information info) {
+        Set<RoomListener> listeners = listenersMap.get(room.getToken());
+        if (listeners != null) {
+            listeners.forEach(listener -> {
+                try {
+                    listener.onPublished(room, info);
+                } catch (Exception e) {
+                    log.error("listener {} failed on info published to room {}", listener, room.getToken(), e);
+                }
+            });
         }
         if (webSocketChannelsMap != null) {
-            Set<WebSocketChannel> channels = webSocketChannelsMap.computeIfAbsent(room.getToken(), t -> Sets.newConcurrentHashSet());
-            if (channels.isEmpty()) return;
-            String content = toJsonText(info);
-            channels.forEach(channel -> WebSockets.sendText(content, channel, webSocketCallback));
+            Set<WebSocketChannel> channels = webSocketChannelsMap.get(room.getToken());
+            if (channels == null || channels.isEmpty()) return;
+            webSocketBroadcaster.broadcast(channels, InformationJson.encode(info));
         }
     }
 }
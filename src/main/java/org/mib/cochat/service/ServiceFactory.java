@@ -1,13 +1,25 @@
 package org.mib.cochat.service;
 
 import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.mib.cochat.message.BodyArena;
+import org.mib.cochat.message.InformationJson;
+import org.mib.cochat.message.RawFile;
+import org.mib.cochat.message.Text;
 import org.mib.cochat.repo.InMemoryRepositories;
 import org.mib.cochat.repo.InMemoryRepository;
 import org.mib.cochat.repo.InMemoryWithFSPersistenceRepositories;
 import org.mib.cochat.repo.PersistStrategy;
 import org.mib.cochat.repo.Repositories;
+import org.mib.cochat.room.ColdStorage;
+import org.mib.cochat.room.RetentionPolicy;
 import org.mib.common.config.ConfigProvider;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@Slf4j
 @Getter
 public class ServiceFactory {
 
@@ -17,16 +29,29 @@ public class ServiceFactory {
     private final MessageService messageService;
     private final ChatterService chatterService;
     private final FileService fileService;
+    private final ColdStorage coldStorage;
 
     private ServiceFactory() {
         final boolean isWebSocketEnabled = ConfigProvider.getBoolean("web_socket_enabled");
+        if (ConfigProvider.getBoolean("offheap_bodies_enabled")) {
+            // installed before repositories load, so recovered texts go off heap too
+            Text.useArena(new BodyArena(ConfigProvider.get("offheap_arena_dir"),
+                    ConfigProvider.getInt("offheap_segment_megabytes") << 20, ConfigProvider.getInt("offheap_max_segments")));
+        }
+        long jsonCacheBytes = (long) ConfigProvider.getInt("json_cache_megabytes") << 20;
+        if (jsonCacheBytes > 0) {
+            InformationJson.useCache(jsonCacheBytes);
+        }
         Repositories repositories;
         if (ConfigProvider.getBoolean("persist_enabled")) {
             String persistDir = ConfigProvider.get("persist_dir");
             PersistStrategy strategy = new PersistStrategy(
                     ConfigProvider.getBoolean("compress_enabled"),
                     ConfigProvider.getInt("max_edits_per_persist"),
-                    ConfigProvider.getInt("persist_interval_seconds")
+                    ConfigProvider.getInt("persist_interval_seconds"),
+                    ConfigProvider.getBoolean("journal_enabled"),
+                    ConfigProvider.getInt("journal_sync_interval_millis"),
+                    ConfigProvider.getBoolean("binary_format_enabled")
             );
             repositories = new InMemoryWithFSPersistenceRepositories(
                     persistDir + "/chatter.cochat", strategy,
@@ -36,10 +61,37 @@ public class ServiceFactory {
         } else {
             repositories = new InMemoryRepositories();
         }
-        this.fileService = new FileService(ConfigProvider.get("file_store_path"));
+        int thumbnailThreads = ConfigProvider.getInt("thumbnail_threads");
+        ThumbnailGenerator thumbnailGenerator = null;
+        if (thumbnailThreads > 0) {
+            thumbnailGenerator = new ThumbnailGenerator(thumbnailThreads, ConfigProvider.getInt("thumbnail_queue_capacity"),
+                    ConfigProvider.getInt("thumbnail_max_size"));
+            Runtime.getRuntime().addShutdownHook(new Thread(thumbnailGenerator::shutdown));
+        }
+        this.fileService = new FileService(ConfigProvider.get("file_store_path"), thumbnailGenerator);
+        repositories.getMessageRepository().forEach((token, message) -> {
+            if (message instanceof RawFile) fileService.retainFile((RawFile) message);
+        });
+        this.coldStorage = ConfigProvider.getBoolean("cold_storage_enabled") ? new ColdStorage(ConfigProvider.get("cold_storage_dir")) : null;
         this.messageService = new MessageService(repositories.getMessageRepository(), fileService);
-        this.roomService = new RoomService(repositories.getRoomRepository(), messageService, isWebSocketEnabled);
+        this.roomService = new RoomService(repositories.getRoomRepository(), messageService, coldStorage,
+                isWebSocketEnabled, ConfigProvider.getInt("web_socket_max_pending_frames"),
+                ConfigProvider.getInt("dispatcher_threads"), ConfigProvider.getInt("dispatcher_queue_capacity"));
         this.chatterService = new ChatterService(repositories.getChatterRepository(), isWebSocketEnabled);
+
+        int sweepInterval = ConfigProvider.getInt("retention_sweep_interval_seconds");
+        if (sweepInterval > 0) {
+            RetentionPolicy defaultRetention = new RetentionPolicy(
+                    ConfigProvider.getInt("retention_max_messages"),
+                    ConfigProvider.getInt("retention_max_age_seconds"),
+                    (long) ConfigProvider.getInt("retention_max_megabytes") << 20
+            );
+            RetentionSweeper sweeper = new RetentionSweeper(repositories.getRoomRepository(), messageService, defaultRetention, coldStorage);
+            ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor();
+            ses.scheduleWithFixedDelay(sweeper, sweepInterval, sweepInterval, TimeUnit.SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(ses::shutdown));
+            log.info("retention sweeper scheduled every {} seconds with default policy {}", sweepInterval, defaultRetention);
+        }
     }
 
     public static ServiceFactory getInstance() {
@@ -0,0 +1,138 @@
+package org.mib.cochat.service;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.mib.common.validator.Validator.validateIntPositive;
+import static org.mib.common.validator.Validator.validateObjectNotNull;
+
+/**
+ * Scales images down to jpeg thumbnails on a bounded pool of background threads. Requests beyond the queue capacity
+ * are dropped, the thumbnail is requested again the next time it's missed.
+ */
+@Slf4j
+public class ThumbnailGenerator {
+
+    private static final String FORMAT = "jpg";
+
+    private final int maxSize;
+    private final ExecutorService executor;
+    // thumbnails queued or being written
+    private final Set<Path> pending;
+
+    public ThumbnailGenerator(final int threads, final int queueCapacity, final int maxSize) {
+        validateIntPositive(threads, "thumbnail threads");
+        validateIntPositive(queueCapacity, "thumbnail queue capacity");
+        validateIntPositive(maxSize, "thumbnail max size");
+        this.maxSize = maxSize;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                new ThreadFactoryBuilder().setNameFormat("thumbnailer-%d").setDaemon(true).build());
+        this.pending = Sets.newConcurrentHashSet();
+    }
+
+    /**
+     * Queues generation of the thumbnail of the image unless it exists or is already queued.
+     */
+    public void submit(Path image, Path thumbnail) {
+        validateObjectNotNull(image, "image path");
+        validateObjectNotNull(thumbnail, "thumbnail path");
+        if (Files.exists(thumbnail) || !pending.add(thumbnail)) return;
+        try {
+            executor.execute(() -> {
+                try {
+                    generate(image, thumbnail);
+                } catch (Exception e) {
+                    log.error("failed to generate thumbnail {} for {}", thumbnail, image, e);
+                } finally {
+                    pending.remove(thumbnail);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(thumbnail);
+            log.warn("thumbnail queue full, dropping thumbnail {}", thumbnail);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void generate(Path image, Path thumbnail) throws IOException {
+        BufferedImage source = read(image);
+        if (source == null) {
+            log.warn("no image reader decodes {}, skipping thumbnail", image);
+            return;
+        }
+        double scale = Math.min(1.0, (double) maxSize / Math.max(source.getWidth(), source.getHeight()));
+        int width = Math.max(1, (int) Math.round(source.getWidth() * scale)),
+                height = Math.max(1, (int) Math.round(source.getHeight() * scale));
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            // jpeg has no alpha channel, transparent pixels turn white
+            graphics.drawImage(source, 0, 0, width, height, Color.WHITE, null);
+        } finally {
+            graphics.dispose();
+        }
+        Path tmp = thumbnail.resolveSibling(thumbnail.getFileName() + ".tmp");
+        if (!ImageIO.write(scaled, FORMAT, tmp.toFile())) {
+            throw new IllegalStateException("no image writer for " + FORMAT);
+        }
+        if (!Files.exists(image)) {
+            log.info("image {} deleted while generating its thumbnail, dropping it", image);
+            Files.deleteIfExists(tmp);
+            return;
+        }
+        Files.move(tmp, thumbnail, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // the image is deleted before its thumbnail, so either its deletion removes this one or this check sees it
+        if (!Files.exists(image)) {
+            log.info("image {} deleted while installing its thumbnail, dropping it", image);
+            Files.deleteIfExists(thumbnail);
+            return;
+        }
+        log.info("generated {}x{} thumbnail {} for {}", width, height, thumbnail, image);
+    }
+
+    /**
+     * Decodes the image subsampled close to the thumbnail size, so large originals never get decoded in full.
+     */
+    private BufferedImage read(Path image) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(image.toFile())) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int longest = Math.max(reader.getWidth(0), reader.getHeight(0));
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, longest / (maxSize * 2));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.mib.cochat.service;
+
+import io.undertow.connector.ByteBufferPool;
+import io.undertow.connector.PooledByteBuffer;
+import io.undertow.websockets.core.WebSocketCallback;
+import io.undertow.websockets.core.WebSocketChannel;
+import io.undertow.websockets.core.WebSockets;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mib.common.validator.Validator.validateIntPositive;
+import static org.mib.common.validator.Validator.validateObjectNotNull;
+
+/**
+ * Sends one text frame to many web socket channels. The payload is copied once into a buffer taken from the
+ * channels' pool (or a direct buffer when it doesn't fit) and shared read-only by all sends; the buffer goes back to
+ * the pool once the last send releases it. Channels with more than the allowed number of frames still in flight are
+ * considered too slow to keep up and get disconnected.
+ */
+@Slf4j
+@SuppressWarnings("deprecation")
+class WebSocketBroadcaster {
+
+    private static final String PENDING_FRAMES_ATTR = "cochat.pendingFrames";
+
+    private final int maxPendingFrames;
+    private final WebSocketCallback<AtomicInteger> callback;
+
+    WebSocketBroadcaster(final int maxPendingFrames) {
+        validateIntPositive(maxPendingFrames, "max pending frames");
+        this.maxPendingFrames = maxPendingFrames;
+        this.callback = new WebSocketCallback<AtomicInteger>() {
+            @Override
+            public void complete(WebSocketChannel channel, AtomicInteger pending) {
+                pending.decrementAndGet();
+                log.debug("message delivered to peer {}", channel.getSourceAddress());
+            }
+
+            @Override
+            public void onError(WebSocketChannel channel, AtomicInteger pending, Throwable throwable) {
+                pending.decrementAndGet();
+                log.error("failed to deliver message to peer {}", channel.getSourceAddress(), throwable);
+            }
+        };
+    }
+
+    /**
+     * @param text utf-8 bytes of the text, only read
+     */
+    void broadcast(Collection<WebSocketChannel> channels, byte[] text) {
+        validateObjectNotNull(channels, "web socket channels");
+        validateObjectNotNull(text, "text");
+        if (channels.isEmpty()) return;
+        SharedFrame frame = SharedFrame.encode(text, channels.iterator().next().getBufferPool());
+        try {
+            channels.forEach(channel -> send(channel, frame));
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void send(WebSocketChannel channel, SharedFrame frame) {
+        if (!channel.isOpen()) return;
+        AtomicInteger pending = pendingFrames(channel);
+        if (pending.incrementAndGet() > maxPendingFrames) {
+            pending.decrementAndGet();
+            log.warn("peer {} has over {} frames pending, disconnecting slow consumer...", channel.getSourceAddress(), maxPendingFrames);
+            IOUtils.closeQuietly(channel);
+            return;
+        }
+        WebSockets.sendText(frame.retain(), channel, callback, pending);
+    }
+
+    private AtomicInteger pendingFrames(WebSocketChannel channel) {
+        AtomicInteger pending = (AtomicInteger) channel.getAttribute(PENDING_FRAMES_ATTR);
+        if (pending == null) {
+            synchronized (channel) {
+                pending = (AtomicInteger) channel.getAttribute(PENDING_FRAMES_ATTR);
+                if (pending == null) {
+                    pending = new AtomicInteger(0);
+                    channel.setAttribute(PENDING_FRAMES_ATTR, pending);
+                }
+            }
+        }
+        return pending;
+    }
+
+    private static class SharedFrame {
+
+        private final PooledByteBuffer pooled;
+        private final ByteBuffer content;
+        private final AtomicInteger references;
+
+        private SharedFrame(final PooledByteBuffer pooled, final ByteBuffer content) {
+            this.pooled = pooled;
+            this.content = content.asReadOnlyBuffer();
+            this.references = new AtomicInteger(1);
+        }
+
+        static SharedFrame encode(byte[] bytes, ByteBufferPool pool) {
+            if (pool != null && bytes.length <= pool.getBufferSize()) {
+                PooledByteBuffer pooled = pool.allocate();
+                ByteBuffer buffer = pooled.getBuffer();
+                buffer.clear();
+                buffer.put(bytes).flip();
+                return new SharedFrame(pooled, buffer);
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+            buffer.put(bytes).flip();
+            return new SharedFrame(null, buffer);
+        }
+
+        PooledByteBuffer retain() {
+            references.incrementAndGet();
+            ByteBuffer view = content.duplicate();
+            AtomicBoolean open = new AtomicBoolean(true);
+            return new PooledByteBuffer() {
+                @Override
+                public ByteBuffer getBuffer() {
+                    return view;
+                }
+
+                @Override
+                public void close() {
+                    if (open.compareAndSet(true, false)) release();
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return open.get();
+                }
+            };
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0 && pooled != null) {
+                pooled.close();
+            }
+        }
+    }
+}
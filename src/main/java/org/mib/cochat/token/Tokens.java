@@ -0,0 +1,66 @@
+package org.mib.cochat.token;
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.mib.common.validator.Validator.validateIntPositive;
+
+/**
+ * Alphanumeric tokens drawn from per-thread random sources, so concurrent generation never contends on a shared
+ * seed. The alphabet is in ascii order, tokens of equal length compare the same as the numbers they encode.
+ */
+public final class Tokens {
+
+    private static final char[] ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+    // 62^8 milliseconds last until the year 8900
+    private static final int TIMESTAMP_LEN = 8;
+    private static final ThreadLocal<SecureRandom> SECURE_RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
+    private Tokens() {}
+
+    /**
+     * @return random token for identifiers that are not secrets
+     */
+    public static String random(int length) {
+        return random(ThreadLocalRandom.current(), length);
+    }
+
+    /**
+     * @return unguessable random token for identifiers that grant access, like sessions
+     */
+    public static String secure(int length) {
+        return random(SECURE_RANDOM.get(), length);
+    }
+
+    /**
+     * @return token led by the fixed width encoding of the timestamp followed by random characters, so tokens sort
+     * by time down to the millisecond and tokens of the same millisecond still differ by their random tail. Within a
+     * millisecond they sort at random, and timestamps come from clocks that may step back, so the order is only
+     * roughly chronological and no position in a sequence can be derived from it.
+     */
+    public static String timeOrdered(long timestamp, int length) {
+        if (timestamp < 0) throw new IllegalArgumentException("negative timestamp " + timestamp);
+        if (length <= TIMESTAMP_LEN) throw new IllegalArgumentException("time ordered token length must exceed " + TIMESTAMP_LEN);
+        char[] token = new char[length];
+        for (int i = TIMESTAMP_LEN - 1; i >= 0; i--) {
+            token[i] = ALPHABET[(int) (timestamp % ALPHABET.length)];
+            timestamp /= ALPHABET.length;
+        }
+        fill(ThreadLocalRandom.current(), token, TIMESTAMP_LEN);
+        return new String(token);
+    }
+
+    private static String random(Random random, int length) {
+        validateIntPositive(length, "token length");
+        char[] token = new char[length];
+        fill(random, token, 0);
+        return new String(token);
+    }
+
+    private static void fill(Random random, char[] token, int from) {
+        for (int i = from; i < token.length; i++) {
+            token[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+        }
+    }
+}
@@ -106,12 +106,11 @@ async function sendText(token, message) {
 }
 
 async function sendUpload(token, file) {
-    const form = new FormData();
-    form.append("file", file);
     try {
-        const response = await fetch(`/api/rooms/${token}/files`, {
+        const response = await fetch(`/api/rooms/${token}/files/${encodeURIComponent(file.name)}`, {
             method: 'POST',
-            body: form,
+            body: file,
+            headers: {"Content-type": file.type || "application/octet-stream"},
             credentials: "include"
         });
         if (!response.ok) {
@@ -124,25 +123,46 @@ async function sendUpload(token, file) {
     }
 }
 
-async function syncMessages(token, displayMessage, lastSyncedAt = 0) {
+const SYNC_PAGE_SIZE = 500;
+const LONG_POLL_WAIT_SECONDS = 30;
+
+async function syncMessages(token, displayMessage, cursor = '', waitSeconds = 0) {
     try {
-        const response = await fetch(`/api/rooms/${token}/messages?_timestamp=${lastSyncedAt}`, { credentials: "include" });
-        if (!response.ok) {
-            throw new Error(response.statusText);
+        while (true) {
+            const response = await fetch(`/api/rooms/${token}/messages?_cursor=${encodeURIComponent(cursor)}&_limit=${SYNC_PAGE_SIZE}&_wait=${waitSeconds}`,
+                { credentials: "include" });
+            if (response.status === 304) {
+                return cursor;
+            }
+            if (!response.ok) {
+                throw new Error(response.statusText);
+            }
+            const messages = await response.json();
+            messages.forEach(message => displayMessage(message));
+            cursor = response.headers.get('X-Cochat-Cursor') || cursor;
+            if (messages.length < SYNC_PAGE_SIZE) {
+                return cursor;
+            }
         }
-        const messages = await response.json();
-        messages.forEach(message => {
-            lastSyncedAt = message.timestamp;
-            displayMessage(message);
-        });
-        return lastSyncedAt;
     } catch (e) {
         console.error(`failed to sync messages for room ${token}`, e);
         throw e;
     }
 }
 
-async function syncPeriodically(token, displayMessage, lastSyncedAt = 0) {
-    lastSyncedAt = await syncMessages(token, displayMessage, lastSyncedAt);
-    setTimeout(() => syncPeriodically(token, displayMessage, lastSyncedAt), 1000);
+async function syncContinuously(token, displayMessage, cursor = '') {
+    try {
+        cursor = await syncMessages(token, displayMessage, cursor, LONG_POLL_WAIT_SECONDS);
+        setTimeout(() => syncContinuously(token, displayMessage, cursor), 0);
+    } catch (e) {
+        setTimeout(() => syncContinuously(token, displayMessage, cursor), 1000);
+    }
+}
+
+async function subscribeEvents(token, displayMessage) {
+    const cursor = await syncMessages(token, displayMessage);
+    const source = new EventSource(`/api/rooms/${token}/events?_cursor=${encodeURIComponent(cursor)}`);
+    source.onmessage = event => displayMessage(JSON.parse(event.data));
+    source.onerror = e => console.error(`event stream for room ${token} interrupted, reconnecting...`, e);
+    return source;
 }
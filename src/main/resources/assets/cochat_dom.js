@@ -24,10 +24,13 @@ async function initRoom(msgElementId, dialogElementId, containerElementId, roomN
             console.error(`failed to sync historical messages for room ${token}`, e);
             alert('failed to sync init messages');
         });
-    } else {
-        syncPeriodically(token, showMessage).catch(e => {
-            console.error(`failed to sync messages for room ${token}`, e)
+    } else if (window.EventSource) {
+        subscribeEvents(token, showMessage).catch(e => {
+            console.error(`failed to subscribe events for room ${token}`, e);
+            syncContinuously(token, showMessage);
         });
+    } else {
+        syncContinuously(token, showMessage);
     }
 }
 
@@ -170,6 +173,8 @@ function createContentElement(message) {
     if (message.type === 'Text') {
         const content = message.text.trimRight().replace(/\n/g, "<br/>");
         return document.createTextNode(content);
+    } else if (message.expired) {
+        return document.createTextNode(`${message.name} (expired)`);
     } else if (message.type === 'RawFile') {
         const linkElement = document.createElement("a");
         linkElement.href = `/api/files/${message.token}`;
@@ -177,11 +182,16 @@ function createContentElement(message) {
         return linkElement;
     } else if (message.type === 'Image') {
         const imgElement = document.createElement("img");
-        imgElement.src = `/api/files/${message.token}`;
+        imgElement.src = `/api/files/${message.token}/thumbnail`;
+        imgElement.loading = "lazy";
         const imgDimensions = getFixedImageDimensions(message.height, message.width);
         imgElement.height = imgDimensions.scaledHeight;
         imgElement.width = imgDimensions.scaledWidth;
-        return imgElement;
+        const linkElement = document.createElement("a");
+        linkElement.href = `/api/files/${message.token}`;
+        linkElement.target = "_blank";
+        linkElement.appendChild(imgElement);
+        return linkElement;
     } else {
         console.error(`unknown message type ${message.type}`);
         return document.createTextNode("");
@@ -0,0 +1,147 @@
+package org.mib.cochat.chatter;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.mib.common.hash.FNVHash;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Colliding chatters are found by brute force against the initial table, probing the way the index does, so the
+ * tests don't depend on the hash beyond it being deterministic.
+ */
+public class ChatterIndexTest {
+
+    private static final int INITIAL_MASK = 63;
+
+    @Test
+    public void testPutGetRemove() {
+        ChatterIndex index = new ChatterIndex();
+        Chatter chatter = new Chatter("token", "name");
+        assertNull(index.get("token"));
+        index.put(chatter);
+        assertSame(chatter, index.get("token"));
+        assertEquals(1, index.size());
+        index.remove("token");
+        assertNull(index.get("token"));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testPutReplacesSameToken() {
+        ChatterIndex index = new ChatterIndex();
+        index.put(new Chatter("token", "before"));
+        Chatter renamed = new Chatter("token", "after");
+        index.put(renamed);
+        assertSame(renamed, index.get("token"));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testLookupProbesPastTombstone() {
+        List<Chatter> colliding = colliding(3);
+        ChatterIndex index = new ChatterIndex();
+        colliding.forEach(index::put);
+        index.remove(colliding.get(0).getToken());
+        assertNull(index.get(colliding.get(0).getToken()));
+        assertSame(colliding.get(1), index.get(colliding.get(1).getToken()));
+        assertSame(colliding.get(2), index.get(colliding.get(2).getToken()));
+    }
+
+    @Test
+    public void testPutReusesTombstone() {
+        List<Chatter> colliding = colliding(2);
+        ChatterIndex index = new ChatterIndex();
+        colliding.forEach(index::put);
+        index.remove(colliding.get(0).getToken());
+        // putting the live chatter again replaces it past the tombstone, instead of duplicating it into the tombstone
+        Chatter again = new Chatter(colliding.get(1).getToken(), "again");
+        index.put(again);
+        assertEquals(1, index.size());
+        assertSame(again, index.get(again.getToken()));
+        index.put(colliding.get(0));
+        assertEquals(2, index.size());
+        assertSame(colliding.get(0), index.get(colliding.get(0).getToken()));
+    }
+
+    @Test
+    public void testChurnOfSameChatter() {
+        ChatterIndex index = new ChatterIndex();
+        Chatter chatter = new Chatter("token", "name");
+        for (int i = 0; i < 10_000; i++) {
+            index.put(chatter);
+            index.remove("token");
+        }
+        assertEquals(0, index.size());
+        index.put(chatter);
+        assertSame(chatter, index.get("token"));
+    }
+
+    @Test
+    public void testRebuildKeepsLiveDropsRemoved() {
+        ChatterIndex index = new ChatterIndex();
+        List<Chatter> chatters = Lists.newArrayList();
+        for (int i = 0; i < 5_000; i++) {
+            Chatter chatter = new Chatter("token" + i, "name" + i);
+            chatters.add(chatter);
+            index.put(chatter);
+            // removing every other one leaves tombstones for growth to drop
+            if (i % 2 == 1) index.remove(chatter.getToken());
+        }
+        assertEquals(2_500, index.size());
+        for (int i = 0; i < chatters.size(); i++) {
+            Chatter chatter = chatters.get(i);
+            if (i % 2 == 0) {
+                assertSame(chatter, index.get(chatter.getToken()));
+            } else {
+                assertNull(index.get(chatter.getToken()));
+            }
+        }
+    }
+
+    @Test
+    public void testIdentityCollisionVerifiesToken() {
+        Chatter genuine = new Chatter("genuine", "name");
+        // a chatter whose identity equals the genuine one's despite a different token
+        Chatter impostor = new Chatter("impostor", "name") {
+            @Override
+            public long getIdentity() {
+                return genuine.getIdentity();
+            }
+        };
+        ChatterIndex index = new ChatterIndex();
+        index.put(impostor);
+        assertNull(index.get("genuine"));
+        index.put(genuine);
+        assertEquals(2, index.size());
+        assertSame(genuine, index.get("genuine"));
+        index.remove("genuine");
+        assertNull(index.get("genuine"));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testNullToken() {
+        ChatterIndex index = new ChatterIndex();
+        assertNull(index.get(null));
+        index.remove(null);
+        assertEquals(0, index.size());
+    }
+
+    private static List<Chatter> colliding(int count) {
+        List<Chatter> colliding = Lists.newArrayList();
+        int home = -1;
+        for (int i = 0; colliding.size() < count; i++) {
+            String token = "token" + i;
+            long identity = FNVHash.hash64(token);
+            int slot = (int) (identity ^ (identity >>> 32)) & INITIAL_MASK;
+            if (home < 0) home = slot;
+            if (slot == home) colliding.add(new Chatter(token, "name" + i));
+        }
+        return colliding;
+    }
+}
@@ -0,0 +1,221 @@
+package org.mib.cochat.repo;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mib.cochat.chatter.Chatter;
+import org.mib.cochat.message.Text;
+import org.mib.cochat.room.Room;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryWithFSPersistenceRepositoryTest {
+
+    private static final String TRICKY = "first line\nsecond\tcolumn\r\\n is not a line break\\\\ and a trailing \\";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEscapeRoundTrip() {
+        String escaped = InMemoryWithFSPersistenceRepository.escape(TRICKY);
+        assertEquals(-1, escaped.indexOf('\n'));
+        assertEquals(-1, escaped.indexOf('\r'));
+        assertEquals(-1, escaped.indexOf('\t'));
+        assertEquals(TRICKY, InMemoryWithFSPersistenceRepository.unescape(escaped));
+        assertEquals("plain", InMemoryWithFSPersistenceRepository.escape("plain"));
+    }
+
+    @Test
+    public void testUnescapeKeepsUnknownEscapes() {
+        assertEquals("C:\\dir\\x", InMemoryWithFSPersistenceRepository.unescape("C:\\dir\\x"));
+    }
+
+    @Test
+    public void testJournalRoundTripOfEscapedValues() throws Exception {
+        String path = new File(folder.getRoot(), "strings").getPath();
+        InMemoryWithFSPersistenceRepository<String, String> repository = strings(path, journaled(false));
+        repository.store("key\twith\ntabs", TRICKY);
+        assertEquals(TRICKY, strings(path, journaled(false)).retrieve("key\twith\ntabs"));
+    }
+
+    @Test
+    public void testTextSnapshotRoundTripOfEscapedValues() throws Exception {
+        String path = new File(folder.getRoot(), "strings").getPath();
+        InMemoryWithFSPersistenceRepository<String, String> repository = strings(path, new PersistStrategy());
+        repository.store("key", TRICKY);
+        repository.persist();
+        assertEquals(TRICKY, strings(path, new PersistStrategy()).retrieve("key"));
+    }
+
+    @Test
+    public void testFieldsRoundTripThroughJournalAndSnapshot() throws Exception {
+        for (boolean binary : new boolean[] {false, true}) {
+            File dir = folder.newFolder(binary ? "binary" : "text");
+            InMemoryWithFSPersistenceRepositories repositories = repositories(dir, binary);
+            Chatter chatter = new Chatter("chatter" + binary, TRICKY);
+            Room room = new Room(chatter, "room" + binary, TRICKY);
+            repositories.getChatterRepository().store(chatter.getToken(), chatter);
+            repositories.getRoomRepository().store(room.getToken(), room);
+            Text text = new Text(chatter, "text" + binary, 1000, TRICKY);
+            text.setRoom(room);
+            text.setSequence(1);
+            repositories.getMessageRepository().store(text.getToken(), text);
+
+            // journal tail replayed over no snapshot, then a snapshot with an empty tail
+            for (int i = 0; i < 2; i++) {
+                InMemoryWithFSPersistenceRepositories recovered = repositories(dir, binary);
+                assertEquals(TRICKY, recovered.getChatterRepository().retrieve(chatter.getToken()).getName());
+                assertEquals(TRICKY, recovered.getRoomRepository().retrieve(room.getToken()).getName());
+                assertEquals(TRICKY, ((Text) recovered.getMessageRepository().retrieve(text.getToken())).getText());
+                ((InMemoryWithFSPersistenceRepository<?, ?>) recovered.getChatterRepository()).persist();
+                ((InMemoryWithFSPersistenceRepository<?, ?>) recovered.getRoomRepository()).persist();
+                ((InMemoryWithFSPersistenceRepository<?, ?>) recovered.getMessageRepository()).persist();
+            }
+        }
+    }
+
+    @Test
+    public void testDeletedKeyWithSeparatorsStaysDeleted() throws Exception {
+        String path = new File(folder.getRoot(), "strings").getPath();
+        InMemoryWithFSPersistenceRepository<String, String> repository = strings(path, journaled(false));
+        repository.store("a\tb", "value");
+        repository.persist();
+        repository.delete("a\tb");
+        assertNull(strings(path, journaled(false)).retrieve("a\tb"));
+    }
+
+    @Test
+    public void testLeftoverJournalFoldedOnceJournalDisabled() throws Exception {
+        String path = new File(folder.getRoot(), "strings").getPath();
+        strings(path, journaled(true)).store("key", "journaled");
+        assertEquals(1, Journal.segments(path).size());
+
+        InMemoryWithFSPersistenceRepository<String, String> unjournaled = strings(path, unjournaled());
+        assertEquals("journaled", unjournaled.retrieve("key"));
+        assertTrue(Journal.segments(path).isEmpty());
+        unjournaled.delete("key");
+        unjournaled.persist();
+        assertNull(strings(path, unjournaled()).retrieve("key"));
+    }
+
+    @Test
+    public void testJournalReplayOfStoresAndDeletes() throws Exception {
+        String path = new File(folder.getRoot(), "strings").getPath();
+        InMemoryWithFSPersistenceRepository<String, String> repository = strings(path, journaled(true));
+        repository.store("kept", "1");
+        repository.store("deleted", "2");
+        repository.store("recreated", "3");
+        repository.delete("deleted");
+        repository.delete("recreated");
+        repository.store("recreated", "4");
+        repository.compute("kept", (key, value) -> value + "5");
+
+        InMemoryWithFSPersistenceRepository<String, String> recovered = strings(path, journaled(true));
+        assertEquals(2, recovered.size());
+        assertEquals("15", recovered.retrieve("kept"));
+        assertNull(recovered.retrieve("deleted"));
+        assertEquals("4", recovered.retrieve("recreated"));
+    }
+
+    @Test
+    public void testSnapshotRollsAndCompactsJournal() throws Exception {
+        String path = new File(folder.getRoot(), "strings").getPath();
+        InMemoryWithFSPersistenceRepository<String, String> repository = strings(path, journaled(true));
+        repository.store("snapshotted", "1");
+        repository.store("deleted", "2");
+        repository.persist();
+        // sealed segments are folded into the snapshot, leaving only the one opened by the roll
+        assertEquals(1, Journal.segments(path).size());
+        repository.delete("deleted");
+        repository.store("journaled", "3");
+
+        InMemoryWithFSPersistenceRepository<String, String> recovered = strings(path, journaled(true));
+        assertEquals(2, recovered.size());
+        assertEquals("1", recovered.retrieve("snapshotted"));
+        assertNull(recovered.retrieve("deleted"));
+        assertEquals("3", recovered.retrieve("journaled"));
+    }
+
+    @Test
+    public void testEditsRacingWithSnapshotsRecover() throws Exception {
+        String path = new File(folder.getRoot(), "strings").getPath();
+        InMemoryWithFSPersistenceRepository<String, String> repository = strings(path, journaled(true));
+        AtomicBoolean editing = new AtomicBoolean(true);
+        List<Thread> editors = Lists.newArrayList();
+        for (int t = 0; t < 4; t++) {
+            int editor = t;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(editor);
+                for (int i = 0; editing.get() || i < 2_000; i++) {
+                    String key = "key" + random.nextInt(64);
+                    if (random.nextInt(4) == 0) {
+                        repository.delete(key);
+                    } else {
+                        repository.compute(key, (k, value) -> editor + ":" + random.nextInt());
+                    }
+                }
+            });
+            editors.add(thread);
+            thread.start();
+        }
+        for (int i = 0; i < 20; i++) repository.persist();
+        editing.set(false);
+        for (Thread thread : editors) thread.join();
+
+        InMemoryWithFSPersistenceRepository<String, String> recovered = strings(path, journaled(true));
+        Map<String, String> expected = Maps.newHashMap(), actual = Maps.newHashMap();
+        repository.forEach(expected::put);
+        recovered.forEach(actual::put);
+        assertEquals(expected, actual);
+    }
+
+    static PersistStrategy journaled(boolean binary) {
+        return new PersistStrategy(false, 0, 0, true, 0, binary);
+    }
+
+    static PersistStrategy unjournaled() {
+        return new PersistStrategy(false, 0, 0, false, 0, true);
+    }
+
+    static InMemoryWithFSPersistenceRepository<String, String> strings(String path, PersistStrategy strategy) {
+        return new InMemoryWithFSPersistenceRepository<String, String>(path, strategy) {
+
+            @Override
+            protected String serKey(String key) {
+                return key;
+            }
+
+            @Override
+            protected String serValue(String value) {
+                return value;
+            }
+
+            @Override
+            protected String fromSerKey(String serKey) {
+                return serKey;
+            }
+
+            @Override
+            protected String fromSerValue(String serValue) {
+                return serValue;
+            }
+        };
+    }
+
+    private static InMemoryWithFSPersistenceRepositories repositories(File dir, boolean binary) {
+        PersistStrategy strategy = journaled(binary);
+        return new InMemoryWithFSPersistenceRepositories(new File(dir, "chatters").getPath(), strategy,
+                new File(dir, "rooms").getPath(), strategy, new File(dir, "messages").getPath(), strategy);
+    }
+}
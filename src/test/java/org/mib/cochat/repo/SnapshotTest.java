@@ -0,0 +1,136 @@
+package org.mib.cochat.repo;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotTest {
+
+    // past the file header and the first block header
+    private static final int FIRST_BLOCK_OFFSET = 8 + 12;
+
+    private static final RecordCodec<String, String> STRINGS = new RecordCodec<String, String>() {
+        @Override
+        public void encodeKey(String key, RecordBuffer out) {
+            out.putString(key);
+        }
+
+        @Override
+        public void encodeValue(String value, RecordBuffer out) {
+            out.putString(value);
+        }
+
+        @Override
+        public String decodeKey(RecordBuffer in) {
+            return in.getString();
+        }
+
+        @Override
+        public String decodeValue(RecordBuffer in) {
+            return in.getString();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testUncompressedRoundTrip() throws Exception {
+        assertRoundTrip(false);
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws Exception {
+        assertRoundTrip(true);
+    }
+
+    @Test
+    public void testFilteredKeysAreSkipped() throws Exception {
+        File file = folder.newFile("snapshot");
+        Snapshot.write(file, entries().entrySet(), STRINGS, true);
+        ConcurrentMap<String, String> actual = Maps.newConcurrentMap();
+        Snapshot.read(file, STRINGS, key -> key.endsWith("7"), actual::put);
+        assertEquals(entries().size() / 10, actual.size());
+        actual.keySet().forEach(key -> assertTrue(key.endsWith("7")));
+    }
+
+    @Test
+    public void testTextFileIsNotBinary() throws Exception {
+        File file = folder.newFile("snapshot");
+        Files.write(file.toPath(), "key\tvalue\n".getBytes(StandardCharsets.UTF_8));
+        assertFalse(Snapshot.isBinary(file));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testChecksumMismatchIsDetected() throws Exception {
+        File file = folder.newFile("snapshot");
+        Snapshot.write(file, entries().entrySet(), STRINGS, false);
+        flip(file, FIRST_BLOCK_OFFSET + 100);
+        Snapshot.read(file, STRINGS, key -> true, (key, value) -> {});
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testChecksumMismatchOfCompressedBlockIsDetected() throws Exception {
+        File file = folder.newFile("snapshot");
+        Snapshot.write(file, entries().entrySet(), STRINGS, true);
+        // last byte of the crc in the first block header, so the block still inflates
+        flip(file, FIRST_BLOCK_OFFSET - 1);
+        Snapshot.read(file, STRINGS, key -> true, (key, value) -> {});
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnsupportedVersionIsRejected() throws Exception {
+        File file = folder.newFile("snapshot");
+        Snapshot.write(file, entries().entrySet(), STRINGS, false);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4);
+            raf.write(1);
+        }
+        Snapshot.read(file, STRINGS, key -> true, (key, value) -> {});
+    }
+
+    private void assertRoundTrip(boolean compressed) throws Exception {
+        File file = folder.newFile("snapshot");
+        Map<String, String> expected = entries();
+        // a record larger than a block goes to a block of its own
+        expected.put("large", Strings.repeat("x", 300 << 10));
+        Snapshot.write(file, expected.entrySet(), STRINGS, compressed);
+        assertTrue(Snapshot.isBinary(file));
+        ConcurrentMap<String, String> actual = Maps.newConcurrentMap();
+        Snapshot.read(file, STRINGS, key -> true, actual::put);
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * @return entries spanning several blocks
+     */
+    private static Map<String, String> entries() {
+        Map<String, String> entries = Maps.newHashMap();
+        for (int i = 0; i < 10000; i++) {
+            entries.put("key" + i, "value \u2713 " + Strings.repeat(Integer.toString(i), 20));
+        }
+        return entries;
+    }
+
+    private static void flip(File file, long position) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xFF);
+        }
+    }
+}
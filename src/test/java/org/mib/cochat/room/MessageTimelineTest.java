@@ -0,0 +1,191 @@
+package org.mib.cochat.room;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.mib.cochat.chatter.Chatter;
+import org.mib.cochat.message.Message;
+import org.mib.cochat.message.Text;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MessageTimelineTest {
+
+    private static final Chatter AUTHOR = new Chatter("author", "author");
+
+    @Test
+    public void testAppendSequencesInOrder() {
+        MessageTimeline timeline = new MessageTimeline();
+        List<Message> appended = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            Message message = text("m" + i, 1000);
+            timeline.append(message, persisted -> {
+                assertTrue(persisted.getSequence() > 0);
+                // persisted before it's visible to readers
+                assertFalse(Lists.newArrayList(timeline).contains(persisted));
+            });
+            appended.add(message);
+        }
+        assertEquals(appended, Lists.newArrayList(timeline));
+        for (int i = 1; i < appended.size(); i++) {
+            assertTrue(appended.get(i).getSequence() > appended.get(i - 1).getSequence());
+        }
+        assertEquals(100, timeline.size());
+        assertSame(appended.get(0), timeline.first());
+    }
+
+    @Test
+    public void testConcurrentAppendsGetDistinctSequences() throws Exception {
+        MessageTimeline timeline = new MessageTimeline();
+        ConcurrentLinkedQueue<Message> persisted = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = Lists.newArrayList();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 500; i++) timeline.append(text("t" + thread + "m" + i, 1000), persisted::add);
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) thread.join();
+        // persisted in sequence order, and iterated in that order too
+        List<Message> inTimeline = Lists.newArrayList(timeline);
+        assertEquals(2_000, inTimeline.size());
+        assertEquals(Lists.newArrayList(persisted), inTimeline);
+    }
+
+    @Test
+    public void testConcurrentAppendsPublishInSequenceOrder() throws Exception {
+        MessageTimeline timeline = new MessageTimeline();
+        ConcurrentLinkedQueue<Message> published = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = Lists.newArrayList();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    timeline.append(text("t" + thread + "m" + i, 1000), persisted -> { }, appended -> {
+                        // already visible to readers when published
+                        assertSame(appended, timeline.after(MessageTimeline.cursorAt(0), Integer.MAX_VALUE).stream()
+                                .filter(message -> message == appended).findFirst().orElse(null));
+                        published.add(appended);
+                    });
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) thread.join();
+        assertEquals(Lists.newArrayList(timeline), Lists.newArrayList(published));
+    }
+
+    @Test
+    public void testAfterCursor() {
+        MessageTimeline timeline = new MessageTimeline();
+        List<Message> appended = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            Message message = text("m" + i, 1000);
+            timeline.append(message, persisted -> { });
+            appended.add(message);
+        }
+        String cursor = MessageTimeline.cursor(appended.get(3));
+        assertEquals(appended.subList(4, 10), timeline.after(cursor, 100));
+        assertEquals(appended.subList(4, 6), timeline.after(cursor, 2));
+        assertTrue(timeline.after(MessageTimeline.cursor(appended.get(9)), 100).isEmpty());
+        assertTrue(MessageTimeline.isCovered(appended.get(3), cursor));
+        assertFalse(MessageTimeline.isCovered(appended.get(4), cursor));
+
+        timeline.remove(appended.get(5));
+        assertEquals(Arrays.asList(appended.get(4), appended.get(6)), timeline.after(cursor, 2));
+        assertEquals(9, timeline.size());
+    }
+
+    @Test
+    public void testSinceTimestamp() {
+        MessageTimeline timeline = new MessageTimeline();
+        long before = System.currentTimeMillis();
+        Message message = text("m", before);
+        timeline.append(message, persisted -> { });
+        assertEquals(Lists.newArrayList(message), timeline.since(before, 10));
+        assertEquals(Lists.newArrayList(message), timeline.after(MessageTimeline.cursorAt(before), 10));
+        assertTrue(timeline.since(System.currentTimeMillis() + 60_000, 10).isEmpty());
+    }
+
+    @Test
+    public void testRestoreSequencedAndLegacyMessages() {
+        List<Message> restored = Lists.newArrayList(
+                sequenced(text("late", 3000), 3000L << 10),
+                text("legacy-b", 2000),
+                text("legacy-a", 2000),
+                text("legacy-old", 1000),
+                sequenced(text("early", 500), 500L << 10));
+        MessageTimeline timeline = new MessageTimeline();
+        timeline.restore(restored);
+
+        // legacy messages are ordered by timestamp, ties broken by token, among the sequenced ones
+        assertEquals(Arrays.asList("early", "legacy-old", "legacy-a", "legacy-b", "late"),
+                Lists.newArrayList(timeline).stream().map(Message::getToken).collect(Collectors.toList()));
+        assertEquals(5, timeline.size());
+
+        // the same sequences are derived on every recovery
+        List<Message> again = Lists.newArrayList(text("legacy-b", 2000), text("legacy-a", 2000), text("legacy-old", 1000));
+        new MessageTimeline().restore(again);
+        for (Message message : again) assertEquals(find(timeline, message.getToken()).getSequence(), message.getSequence());
+
+        // appends go after everything restored
+        Message appended = text("appended", 0);
+        timeline.append(appended, persisted -> { });
+        assertTrue(appended.getSequence() > find(timeline, "late").getSequence());
+    }
+
+    @Test
+    public void testRestoreAvoidsTakenSequences() {
+        Message sequenced = sequenced(text("sequenced", 1000), 1000L << 10);
+        Message legacy = text("legacy", 1000);
+        MessageTimeline timeline = new MessageTimeline();
+        timeline.restore(Arrays.asList(sequenced, legacy));
+        assertEquals(2, timeline.size());
+        assertTrue(legacy.getSequence() != sequenced.getSequence());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRestoreOnlyIntoEmptyTimeline() {
+        MessageTimeline timeline = new MessageTimeline();
+        timeline.append(text("m", 1000), persisted -> { });
+        timeline.restore(Lists.newArrayList(text("other", 1000)));
+    }
+
+    @Test
+    public void testClearAndFootprint() {
+        MessageTimeline timeline = new MessageTimeline();
+        Message message = text("m", 1000);
+        timeline.append(message, persisted -> { });
+        assertEquals(MessageTimeline.footprint(message), timeline.footprint());
+        timeline.clear();
+        assertTrue(timeline.isEmpty());
+        assertEquals(0, timeline.size());
+        assertEquals(0, timeline.footprint());
+        assertNull(timeline.first());
+    }
+
+    private static Text text(String token, long timestamp) {
+        return new Text(AUTHOR, token, timestamp, "body of " + token);
+    }
+
+    private static Message sequenced(Message message, long sequence) {
+        message.setSequence(sequence);
+        return message;
+    }
+
+    private static Message find(MessageTimeline timeline, String token) {
+        for (Message message : timeline) {
+            if (message.getToken().equals(token)) return message;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,94 @@
+package org.mib.cochat.service;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Every fixture is 3 pixels wide and 2 high, so swapped dimensions show. The webp fixtures are 1x1 images with the
+ * dimensions in their headers patched, which is all the prober reads.
+ */
+public class ImageHeaderProberTest {
+
+    private static final Dimension EXPECTED = new Dimension(3, 2);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPng() throws Exception {
+        assertEquals(EXPECTED, ImageHeaderProber.probe(fixture("image.png")));
+    }
+
+    @Test
+    public void testGif() throws Exception {
+        assertEquals(EXPECTED, ImageHeaderProber.probe(fixture("image.gif")));
+    }
+
+    @Test
+    public void testBmp() throws Exception {
+        assertEquals(EXPECTED, ImageHeaderProber.probe(fixture("image.bmp")));
+    }
+
+    @Test
+    public void testJpeg() throws Exception {
+        assertEquals(EXPECTED, ImageHeaderProber.probe(fixture("image.jpg")));
+    }
+
+    @Test
+    public void testJpegSkipsExifSegment() throws Exception {
+        assertEquals(EXPECTED, ImageHeaderProber.probe(fixture("exif.jpg")));
+    }
+
+    @Test
+    public void testWebpLossy() throws Exception {
+        assertEquals(EXPECTED, ImageHeaderProber.probe(fixture("lossy.webp")));
+    }
+
+    @Test
+    public void testWebpLossless() throws Exception {
+        assertEquals(EXPECTED, ImageHeaderProber.probe(fixture("lossless.webp")));
+    }
+
+    @Test
+    public void testWebpExtended() throws Exception {
+        assertEquals(EXPECTED, ImageHeaderProber.probe(fixture("extended.webp")));
+    }
+
+    @Test
+    public void testUnknownFormat() throws Exception {
+        Path text = folder.newFile("image.txt").toPath();
+        Files.write(text, "not an image at all, just text".getBytes(StandardCharsets.UTF_8));
+        assertNull(ImageHeaderProber.probe(text));
+    }
+
+    @Test
+    public void testTruncatedHeader() throws Exception {
+        Path truncated = folder.newFile("truncated.png").toPath();
+        Files.write(truncated, Arrays.copyOf(Files.readAllBytes(fixture("image.png")), 20));
+        assertNull(ImageHeaderProber.probe(truncated));
+    }
+
+    @Test
+    public void testJpegWithoutFrameHeader() throws Exception {
+        Path truncated = folder.newFile("truncated.jpg").toPath();
+        Files.write(truncated, Arrays.copyOf(Files.readAllBytes(fixture("exif.jpg")), 1024));
+        assertNull(ImageHeaderProber.probe(truncated));
+    }
+
+    private static Path fixture(String name) throws IOException, URISyntaxException {
+        return Paths.get(ImageHeaderProberTest.class.getResource("/images/" + name).toURI());
+    }
+}